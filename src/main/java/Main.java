@@ -2,6 +2,9 @@ import client.Client;
 import server.MulticastResponder;
 import server.Server;
 
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
 
 public class Main {
@@ -33,7 +36,11 @@ public class Main {
     private static void startServer(Scanner scanner) {
         int port = readInt(scanner, "Enter TCP port for server: ");
         int syncInterval = readInt(scanner, "Enter synchronization frequency (in minutes): ");
-        Server.startServer(port, syncInterval);
+        int replicationPort = readInt(scanner, "Enter replication port (0 to disable): ");
+        List<InetSocketAddress> peers = readPeers(scanner);
+        // Packed files are received in a single buffer, which caps the threshold at 64 KB
+        int packKilobytes = Math.min(64, Math.max(0, readInt(scanner, "Pack files up to (KB, 0 to disable): ")));
+        Server.startServer(port, syncInterval, replicationPort, peers, packKilobytes * 1024);
         new Thread(new MulticastResponder(port)).start();
     }
 
@@ -41,7 +48,27 @@ public class Main {
         System.out.println("Connect to USP server:\n[1] Automatically\n[2] Manually");
         int option = readInt(scanner, "Your choice: ");
         boolean auto = option == 1;
-        new Thread(new Client(auto)).start();
+        System.out.println("Detect changes by content hash:\n[1] Yes\n[2] No");
+        boolean hashContent = readInt(scanner, "Your choice: ") == 1;
+        new Thread(new Client(auto, hashContent)).start();
+    }
+
+    private static List<InetSocketAddress> readPeers(Scanner scanner) {
+        while (true) {
+            System.out.print("Enter replication peers as host:port, separated by commas (empty for none): ");
+            List<InetSocketAddress> peers = new ArrayList<>();
+            try {
+                for (String peer : scanner.nextLine().split(",")) {
+                    if (peer.isBlank()) continue;
+                    int separator = peer.lastIndexOf(':');
+                    peers.add(new InetSocketAddress(peer.substring(0, separator).trim(),
+                            Integer.parseInt(peer.substring(separator + 1).trim())));
+                }
+                return peers;
+            } catch (RuntimeException e) {
+                System.out.println("Invalid peer list. Try again.\n");
+            }
+        }
     }
 
     private static int readInt(Scanner scanner, String prompt) {
@@ -2,38 +2,66 @@ package client;
 
 import common.json.JsonUtils;
 import common.model.ClientData;
-import common.model.FileInfo;
+import common.model.Manifest;
 import common.model.TaskList;
+import common.utils.FileHasher;
 import common.utils.FileWorker;
 
 import java.io.*;
 import java.net.*;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.List;
 import java.util.Scanner;
 
 public class Client implements Runnable {
+    // Pause between receiving the task list and sending files in interactive sessions
+    private static final long SEND_DELAY_MILLIS = 1000;
+
     private InetAddress serverIp;
     private int serverPort = -1;
     private String userID;
     private String directoryPath;
 
     private boolean autoFind;
-    private final Object lock = new Object();
+    private final boolean hashContent;
+    private final Path hashCacheDirectory;
+
+    public Client(boolean findServer, boolean hashContent) {
+        this(findServer, hashContent, Paths.get(System.getProperty("user.home"), ".filesync"));
+    }
+
+    public Client(InetSocketAddress server, String userID, String directoryPath, boolean hashContent, Path hashCacheDirectory) {
+        this(false, hashContent, hashCacheDirectory);
+        this.serverIp = server.getAddress();
+        this.serverPort = server.getPort();
+        this.userID = userID;
+        this.directoryPath = directoryPath;
+    }
 
-    public Client(boolean findServer) {
+    private Client(boolean findServer, boolean hashContent, Path hashCacheDirectory) {
         this.autoFind = findServer;
+        this.hashContent = hashContent;
+        this.hashCacheDirectory = hashCacheDirectory;
+    }
+
+    // Runs a single synchronization without any prompts or waiting for the next one, e.g. for load tests
+    public SessionStats syncOnce() throws IOException, InterruptedException {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(serverIp, serverPort), 5000);
+            return synchronize(socket, 0);
+        }
     }
 
     @Override
     public void run() {
-        MulticastDiscovery multicastDiscovery = new MulticastDiscovery(lock);
+        MulticastDiscovery multicastDiscovery = new MulticastDiscovery();
         Thread thread = new Thread(multicastDiscovery);
+        thread.setDaemon(true);
         thread.start();
 
 
@@ -46,12 +74,11 @@ public class Client implements Runnable {
             try (Socket socket = new Socket()) {
                 socket.connect(new InetSocketAddress(serverIp, serverPort), 5000);
                 connectAndSync(socket);
-
-                if (autoFind) {
-                    multicastDiscovery.setPaused(true);
-                }
             } catch (IOException e) {
                 System.err.println("Could not connect to server within 5 seconds.\n");
+                if (autoFind) {
+                    multicastDiscovery.forget(new InetSocketAddress(serverIp, serverPort));
+                }
             }
 
             Scanner scanner = new Scanner(System.in);
@@ -72,14 +99,15 @@ public class Client implements Runnable {
     }
 
     private void discoverServer(MulticastDiscovery discovery) {
-        discovery.setPaused(false);
-        synchronized (lock) {
-            try {
-                lock.wait();
-                serverIp = discovery.getIp();
-                serverPort = discovery.getServerUSPPort();
-            } catch (InterruptedException ignored) {
-            }
+        try {
+            InetSocketAddress server = discovery.findServer();
+            serverIp = server.getAddress();
+            serverPort = server.getPort();
+        } catch (IOException e) {
+            System.err.println(e.getMessage() + ", enter the server manually.\n");
+            autoFind = false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -112,6 +140,26 @@ public class Client implements Runnable {
     }
 
     private void connectAndSync(Socket socket) {
+        try {
+            SessionStats stats = synchronize(socket, SEND_DELAY_MILLIS);
+            LocalDateTime nextSync = stats.nextSync();
+            System.out.println("Next synchronization: " + nextSync.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+
+            Duration waitTime = Duration.between(LocalDateTime.now(), nextSync);
+            Thread.sleep(waitTime);
+
+        } catch(NoSuchFileException e){
+            System.err.println("Files doesn't exist. " + e.getMessage());
+        } catch (NotDirectoryException e) {
+            System.err.println("Not a directory: " + e.getMessage());
+        } catch (IOException | InterruptedException e) {
+            System.err.println("Error during synchronization: " + e.getMessage());
+        }
+    }
+
+    private SessionStats synchronize(Socket socket, long sendDelayMillis) throws IOException, InterruptedException {
+        long started = System.nanoTime();
+
         try (
                 BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
                 BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()))
@@ -127,14 +175,15 @@ public class Client implements Runnable {
                     System.out.println("Server is ready. Proceeding with synchronization...");
                     break;
                 } else {
-                    System.out.println("Unexpected server message: " + serverSignal);
-                    return;
+                    throw new IOException("Unexpected server message: " + serverSignal);
                 }
             }
+            long admitted = System.nanoTime();
 
-            List<FileInfo> files = getFiles();
+            Manifest files = getFiles();
             ClientData clientInfo = new ClientData(userID, files);
             String clientInfoJson = JsonUtils.toJson(clientInfo);
+            long manifestReady = System.nanoTime();
 
             System.out.println("\nSending information about files to archive...");
             writer.write(clientInfoJson + "\n");
@@ -142,48 +191,47 @@ public class Client implements Runnable {
 
             String taskListJson = reader.readLine();
             TaskList taskList = JsonUtils.fromJson(taskListJson, TaskList.class);
+            long tasksReceived = System.nanoTime();
 
-            Thread.sleep(1000); // Delay before sending files
+            if (sendDelayMillis > 0) Thread.sleep(sendDelayMillis); // Delay before sending files
 
-            if (taskList.outdatedFiles().isEmpty()) {
+            int filesSent = 0;
+            if (taskList.outdatedFiles().length == 0) {
                 System.out.println("All files are up to date!");
             } else {
-                int filesSent = sendFiles(socket, taskList);
-                if (filesSent != taskList.outdatedFiles().size()) {
+                filesSent = sendFiles(socket, files, taskList);
+                if (filesSent != taskList.outdatedFiles().length) {
                     System.out.println("Some files could not be sent.\n");
                 }
             }
+            long uploaded = System.nanoTime();
 
             String localDateString = reader.readLine();
-            LocalDateTime nextSync = LocalDateTime.parse(localDateString);
-            System.out.println("Next synchronization: " + nextSync.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")));
+            if (localDateString == null) throw new IOException("Server closed the connection");
+            long finished = System.nanoTime();
 
-            Duration waitTime = Duration.between(LocalDateTime.now(), nextSync);
-            Thread.sleep(waitTime);
-
-        } catch(NoSuchFileException e){
-            System.err.println("Files doesn't exist. " + e.getMessage());
-        } catch (IOException | InterruptedException e) {
-            System.err.println("Error during synchronization: " + e.getMessage());
+            return new SessionStats(admitted - started, manifestReady - admitted, tasksReceived - manifestReady,
+                    uploaded - tasksReceived, finished - uploaded, filesSent, LocalDateTime.parse(localDateString));
         }
     }
 
 
-    private int sendFiles(Socket socket, TaskList taskList) throws IOException {
+    private int sendFiles(Socket socket, Manifest files, TaskList taskList) throws IOException {
         int filesSent = 0;
 
-        for (FileInfo fileInfo : taskList.outdatedFiles()) {
-            File file = new File(directoryPath, fileInfo.filePath());
+        for (int entry : taskList.outdatedFiles()) {
+            String filePath = files.path(entry);
+            File file = new File(directoryPath, filePath);
 
             if (!file.exists()) {
-                System.out.println("File does not exist: " + fileInfo.filePath());
+                System.out.println("File does not exist: " + filePath);
                 continue;
             }
 
-            System.out.println("Sending file: " + fileInfo.filePath());
+            System.out.println("Sending file: " + filePath);
             DataOutputStream dataOut = new DataOutputStream(socket.getOutputStream());
 
-            dataOut.writeUTF(fileInfo.filePath());
+            dataOut.writeUTF(filePath);
             dataOut.writeLong(file.length());
             dataOut.writeLong(file.lastModified());
 
@@ -196,7 +244,7 @@ public class Client implements Runnable {
                 }
 
                 dataOut.flush();
-                System.out.println("File sent: " + fileInfo.filePath());
+                System.out.println("File sent: " + filePath);
                 filesSent++;
             }
         }
@@ -204,9 +252,16 @@ public class Client implements Runnable {
         return filesSent;
     }
 
-    private List<FileInfo> getFiles() throws NoSuchFileException {
+    private Manifest getFiles() throws IOException {
         Path basePath = Paths.get(directoryPath);
-        FileWorker fileWorker = new FileWorker(basePath, false);
-        return fileWorker.walkFolder();
+        FileWorker fileWorker = new FileWorker(basePath);
+        Manifest manifest = fileWorker.walkFolder();
+
+        if (hashContent) {
+            String cacheName = Integer.toHexString((userID + basePath.toAbsolutePath()).hashCode());
+            Path cacheFile = hashCacheDirectory.resolve("hashes-" + cacheName + ".json");
+            new FileHasher().hash(basePath, manifest, cacheFile);
+        }
+        return manifest;
     }
 }
@@ -5,84 +5,133 @@ import common.model.Message;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class MulticastDiscovery implements Runnable {
+    private static final long SERVER_TTL_MILLIS = 60_000;
+    private static final long FIRST_RETRY_MILLIS = 250;
+    private static final long MAX_RETRY_MILLIS = 5000;
+
     private final String multicastAddr = "224.0.0.2";
-    private int multicastPort = 5000;
-    private InetAddress ip;
-    private int serverUSPPort;
+    private final int multicastPort = 5000;
+    private final byte[] discoverPayload = JsonUtils.toJson(new Message("DISCOVER", multicastPort)).getBytes(StandardCharsets.UTF_8);
+
+    // Server address -> expiry time, ordered from the least to the most recently offered
+    private final Map<InetSocketAddress, Long> knownServers = new LinkedHashMap<>();
+    private MulticastSocket socket;
+    private InetAddress group;
+
+    // Why discovery stopped, e.g. the multicast port could not be bound
+    private IOException failure;
+
+    @Override
+    public void run() {
+        try (MulticastSocket multicastSocket = new MulticastSocket(multicastPort)) {
+            InetAddress multicastGroup = InetAddress.getByName(multicastAddr);
+            multicastSocket.joinGroup(multicastGroup);
+
+            synchronized (this) {
+                socket = multicastSocket;
+                group = multicastGroup;
+                notifyAll();
+            }
+
+            byte[] buf = new byte[256];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+            while (true) {
+                packet.setLength(buf.length);
+                multicastSocket.receive(packet);
+
+                Message message = parse(packet);
+                if (message == null || !"OFFER".equals(message.type()) || message.port() == null) continue;
+
+                offer(new InetSocketAddress(packet.getAddress(), message.port()));
+            }
 
-    private final Object lock;
+        } catch (IOException e) {
+            System.err.println("Multicast discovery stopped: " + e.getMessage());
+            stopped(e);
+        } finally {
+            stopped(new IOException("receive loop ended"));
+        }
+    }
 
-    private volatile boolean paused = true;
+    // Returns a cached server right away and refreshes the cache in the background,
+    // otherwise blocks until the first OFFER arrives
+    public synchronized InetSocketAddress findServer() throws IOException, InterruptedException {
+        while (socket == null && failure == null) wait();
+        checkRunning();
+
+        InetSocketAddress known = latestServer();
+        if (known != null) {
+            sendDiscover();
+            return known;
+        }
 
-    MulticastDiscovery(Object lock) {
-        this.lock = lock;
+        System.out.println("Waiting for server response on multicast...");
+        long retryDelay = FIRST_RETRY_MILLIS;
+        while ((known = latestServer()) == null) {
+            checkRunning();
+            sendDiscover();
+            wait(retryDelay);
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_MILLIS);
+        }
+        return known;
     }
 
-    public InetAddress getIp() {
-        return ip;
+    public synchronized void forget(InetSocketAddress server) {
+        knownServers.remove(server);
     }
 
-    public int getServerUSPPort() {
-        return serverUSPPort;
+    private synchronized void stopped(IOException cause) {
+        if (failure == null) failure = cause;
+        socket = null;
+        notifyAll();
     }
 
-    public void setPaused(boolean paused) {
-        this.paused = paused;
+    private void checkRunning() throws IOException {
+        if (failure != null) throw new IOException("Multicast discovery is not available: " + failure.getMessage(), failure);
     }
 
+    private synchronized void offer(InetSocketAddress server) {
+        boolean isNew = knownServers.remove(server) == null;
+        knownServers.put(server, System.currentTimeMillis() + SERVER_TTL_MILLIS);
+        if (isNew) System.out.println("Received OFFER from: " + server);
+        notifyAll();
+    }
 
-    @Override
-    public void run() {
-        try (MulticastSocket socket = new MulticastSocket(multicastPort)) {
-            InetAddress group = InetAddress.getByName(multicastAddr);
-            socket.joinGroup(group);
-            socket.setSoTimeout(5000);
+    private InetSocketAddress latestServer() {
+        long now = System.currentTimeMillis();
+        InetSocketAddress latest = null;
 
-            while (true) {
-                while (paused);
-                System.out.println("Waiting for server response on multicast...");
-
-                Message discoverMsg = new Message("DISCOVER", multicastPort);
-                byte[] msgJson = JsonUtils.toJson(discoverMsg).getBytes();
-                DatagramPacket discoverPacket = new DatagramPacket(msgJson, msgJson.length, group, multicastPort);
-                socket.send(discoverPacket);
-
-                try {
-                    byte[] buf = new byte[256];
-                    DatagramPacket responsePacket = new DatagramPacket(buf, buf.length);
-                    socket.receive(responsePacket);
-
-                    Message response = getMessageFromPacket(responsePacket, socket);
-
-                    while (!"OFFER".equals(response.type())) {
-                        response = getMessageFromPacket(responsePacket, socket);
-                    }
-
-                    System.out.println("Received OFFER: " + response);
-                    ip = responsePacket.getAddress();
-                    serverUSPPort = response.port();
-                    paused = true;
-                    synchronized (lock) {
-                        lock.notify();
-                    }
-
-                } catch (SocketTimeoutException e) {
-                    System.out.println("No answer within 5 seconds.");
-                    Thread.sleep(10000);
-                }
-            }
+        Iterator<Map.Entry<InetSocketAddress, Long>> it = knownServers.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<InetSocketAddress, Long> entry = it.next();
+            if (entry.getValue() < now) it.remove();
+            else latest = entry.getKey();
+        }
+        return latest;
+    }
 
-        } catch (IOException | InterruptedException e) {
-            e.printStackTrace();
+    private void sendDiscover() {
+        try {
+            socket.send(new DatagramPacket(discoverPayload, discoverPayload.length, group, multicastPort));
+        } catch (IOException e) {
+            System.err.println("Could not send DISCOVER: " + e.getMessage());
         }
     }
 
-    private Message getMessageFromPacket(DatagramPacket packet, DatagramSocket socket) throws IOException {
-        socket.receive(packet);
-        String json = new String(packet.getData(), 0, packet.getLength());
-        return JsonUtils.fromJson(json, Message.class);
+    private Message parse(DatagramPacket packet) {
+        try {
+            String json = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+            return JsonUtils.fromJson(json, Message.class);
+        } catch (RuntimeException e) {
+            return null;
+        }
     }
 
 }
@@ -0,0 +1,18 @@
+package client;
+
+import java.time.LocalDateTime;
+
+// Phase durations of one synchronization session, in nanoseconds
+public record SessionStats(
+        long admissionWait,
+        long manifestBuild,
+        long taskListRoundTrip,
+        long upload,
+        long completion,
+        int filesSent,
+        LocalDateTime nextSync
+) {
+    public long total() {
+        return admissionWait + manifestBuild + taskListRoundTrip + upload + completion;
+    }
+}
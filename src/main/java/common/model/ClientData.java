@@ -1,8 +1,6 @@
 package common.model;
 
-import java.util.List;
-
 public record ClientData(
         String clientId,
-        List<FileInfo> files
+        Manifest files
 ){}
@@ -1,9 +0,0 @@
-package common.model;
-
-import java.nio.file.Path;
-
-public record FileInfo(
-        String filePath,
-        Long modificationDate
-) {
-}
\ No newline at end of file
@@ -0,0 +1,305 @@
+package common.model;
+
+import java.util.Arrays;
+
+// Directory tree stored as columns: every entry points to its parent entry and to a shared
+// name table, so a path is never kept as a whole and no per-file object is created
+public class Manifest {
+    public static final int ROOT = -1;
+    public static final int NOT_FOUND = -1;
+
+    private static final long DIRECTORY_SIZE = -1;
+    private static final int UNKNOWN = -2;
+
+    private int size;
+    private int[] parents;
+    private int[] nameIds;
+    private long[] modificationDates;
+    private long[] sizes;
+    // Optional 128-bit content hashes, two longs per entry, null when hashing is off
+    private long[] hashes;
+
+    private int nameCount;
+    private String[] names;
+
+    // Open-addressing tables holding index + 1 (0 is an empty slot), rebuilt lazily after deserialization
+    private transient int[] nameSlots;
+    private transient int[] entrySlots;
+    private transient int[] hashSlots;
+
+    public Manifest() {
+        this(1024);
+    }
+
+    public Manifest(int capacity) {
+        capacity = Math.max(capacity, 16);
+        parents = new int[capacity];
+        nameIds = new int[capacity];
+        modificationDates = new long[capacity];
+        sizes = new long[capacity];
+        names = new String[capacity];
+    }
+
+    public int addFile(int parent, String name, long modificationDate, long fileSize) {
+        return add(parent, name, modificationDate, fileSize);
+    }
+
+    public int addDirectory(int parent, String name, long modificationDate) {
+        return add(parent, name, modificationDate, DIRECTORY_SIZE);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int parent(int entry) {
+        return parents[entry];
+    }
+
+    public String name(int entry) {
+        return names[nameIds[entry]];
+    }
+
+    public long modificationDate(int entry) {
+        return modificationDates[entry];
+    }
+
+    public long fileSize(int entry) {
+        return Math.max(sizes[entry], 0);
+    }
+
+    public boolean isDirectory(int entry) {
+        return sizes[entry] == DIRECTORY_SIZE;
+    }
+
+    public void setModificationDate(int entry, long modificationDate) {
+        modificationDates[entry] = modificationDate;
+    }
+
+    public void setFileSize(int entry, long fileSize) {
+        sizes[entry] = fileSize;
+    }
+
+    public boolean hasHashes() {
+        return hashes != null;
+    }
+
+    public void enableHashes() {
+        if (hashes == null) hashes = new long[parents.length * 2];
+    }
+
+    public void setHash(int entry, long high, long low) {
+        hashes[entry * 2] = high;
+        hashes[entry * 2 + 1] = low;
+        hashSlots = null;
+    }
+
+    public boolean isHashed(int entry) {
+        return hashes != null && (hashes[entry * 2] != 0 || hashes[entry * 2 + 1] != 0);
+    }
+
+    public long hashHigh(int entry) {
+        return hashes[entry * 2];
+    }
+
+    public long hashLow(int entry) {
+        return hashes[entry * 2 + 1];
+    }
+
+    public boolean sameContent(int entry, Manifest other, int otherEntry) {
+        return isHashed(entry) && other.isHashed(otherEntry)
+                && hashHigh(entry) == other.hashHigh(otherEntry)
+                && hashLow(entry) == other.hashLow(otherEntry)
+                && fileSize(entry) == other.fileSize(otherEntry);
+    }
+
+    // Returns a file whose content hash equals the given one, or NOT_FOUND
+    public int findByHash(long high, long low) {
+        if (hashes == null) return NOT_FOUND;
+        if (hashSlots == null) hashSlots = buildHashSlots();
+
+        int mask = hashSlots.length - 1;
+        for (int slot = hashSlot(high, low) & mask; hashSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = hashSlots[slot] - 1;
+            if (hashHigh(entry) == high && hashLow(entry) == low) return entry;
+        }
+        return NOT_FOUND;
+    }
+
+    public String path(int entry) {
+        StringBuilder builder = new StringBuilder();
+        appendPath(builder, entry);
+        return builder.toString();
+    }
+
+    public int find(int parent, String name) {
+        int nameId = nameId(name);
+        return nameId == NOT_FOUND ? NOT_FOUND : findEntry(parent, nameId);
+    }
+
+    public int find(String path) {
+        int entry = ROOT;
+        for (String name : path.split("/")) {
+            entry = find(entry, name);
+            if (entry == NOT_FOUND) return NOT_FOUND;
+        }
+        return entry;
+    }
+
+    // For every entry of this manifest returns the entry with the same path in the other one, or NOT_FOUND
+    public int[] match(Manifest other) {
+        int[] matches = new int[size];
+        int[] otherNameIds = new int[nameCount];
+        Arrays.fill(otherNameIds, UNKNOWN);
+
+        for (int i = 0; i < size; i++) {
+            int parent = parents[i];
+            if (parent >= i) throw new IllegalStateException("Manifest entry listed before its parent directory: " + i);
+
+            int otherParent = parent == ROOT ? ROOT : matches[parent];
+            if (parent != ROOT && otherParent == NOT_FOUND) {
+                matches[i] = NOT_FOUND;
+                continue;
+            }
+
+            int nameId = nameIds[i];
+            if (otherNameIds[nameId] == UNKNOWN) otherNameIds[nameId] = other.nameId(names[nameId]);
+
+            int otherName = otherNameIds[nameId];
+            matches[i] = otherName == NOT_FOUND ? NOT_FOUND : other.findEntry(otherParent, otherName);
+        }
+        return matches;
+    }
+
+    public void trimToSize() {
+        parents = Arrays.copyOf(parents, size);
+        nameIds = Arrays.copyOf(nameIds, size);
+        modificationDates = Arrays.copyOf(modificationDates, size);
+        sizes = Arrays.copyOf(sizes, size);
+        if (hashes != null) hashes = Arrays.copyOf(hashes, size * 2);
+        names = Arrays.copyOf(names, nameCount);
+    }
+
+    private int add(int parent, String name, long modificationDate, long fileSize) {
+        if (size == parents.length) {
+            int capacity = Math.max(16, size * 2);
+            parents = Arrays.copyOf(parents, capacity);
+            nameIds = Arrays.copyOf(nameIds, capacity);
+            modificationDates = Arrays.copyOf(modificationDates, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+            if (hashes != null) hashes = Arrays.copyOf(hashes, capacity * 2);
+        }
+
+        int entry = size;
+        parents[entry] = parent;
+        nameIds[entry] = internName(name);
+        modificationDates[entry] = modificationDate;
+        sizes[entry] = fileSize;
+        size++;
+
+        if (entrySlots == null || size * 2 > entrySlots.length) entrySlots = buildEntrySlots();
+        else insertEntry(entrySlots, entry);
+        return entry;
+    }
+
+    private int internName(String name) {
+        int nameId = nameId(name);
+        if (nameId != NOT_FOUND) return nameId;
+
+        if (nameCount == names.length) names = Arrays.copyOf(names, Math.max(16, nameCount * 2));
+        nameId = nameCount++;
+        names[nameId] = name;
+
+        if (nameCount * 2 > nameSlots.length) nameSlots = buildNameSlots();
+        else insertName(nameSlots, nameId);
+        return nameId;
+    }
+
+    private int nameId(String name) {
+        if (nameSlots == null) nameSlots = buildNameSlots();
+
+        int mask = nameSlots.length - 1;
+        for (int slot = mix(name.hashCode()) & mask; nameSlots[slot] != 0; slot = (slot + 1) & mask) {
+            int nameId = nameSlots[slot] - 1;
+            if (names[nameId].equals(name)) return nameId;
+        }
+        return NOT_FOUND;
+    }
+
+    private int findEntry(int parent, int nameId) {
+        if (entrySlots == null) entrySlots = buildEntrySlots();
+
+        int mask = entrySlots.length - 1;
+        for (int slot = entryHash(parent, nameId) & mask; entrySlots[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = entrySlots[slot] - 1;
+            if (parents[entry] == parent && nameIds[entry] == nameId) return entry;
+        }
+        return NOT_FOUND;
+    }
+
+    private int[] buildNameSlots() {
+        int[] slots = new int[tableCapacity(nameCount)];
+        for (int nameId = 0; nameId < nameCount; nameId++) insertName(slots, nameId);
+        return slots;
+    }
+
+    private int[] buildEntrySlots() {
+        int[] slots = new int[tableCapacity(size)];
+        for (int entry = 0; entry < size; entry++) insertEntry(slots, entry);
+        return slots;
+    }
+
+    private int[] buildHashSlots() {
+        int[] slots = new int[tableCapacity(size)];
+        int mask = slots.length - 1;
+        for (int entry = 0; entry < size; entry++) {
+            if (!isHashed(entry)) continue;
+
+            int slot = hashSlot(hashHigh(entry), hashLow(entry)) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = entry + 1;
+        }
+        return slots;
+    }
+
+    private void insertName(int[] slots, int nameId) {
+        int mask = slots.length - 1;
+        int slot = mix(names[nameId].hashCode()) & mask;
+        while (slots[slot] != 0) slot = (slot + 1) & mask;
+        slots[slot] = nameId + 1;
+    }
+
+    private void insertEntry(int[] slots, int entry) {
+        int mask = slots.length - 1;
+        int slot = entryHash(parents[entry], nameIds[entry]) & mask;
+        while (slots[slot] != 0) slot = (slot + 1) & mask;
+        slots[slot] = entry + 1;
+    }
+
+    private void appendPath(StringBuilder builder, int entry) {
+        int parent = parents[entry];
+        if (parent != ROOT) {
+            appendPath(builder, parent);
+            builder.append('/');
+        }
+        builder.append(names[nameIds[entry]]);
+    }
+
+    // Keeps every table at most half full
+    private static int tableCapacity(int count) {
+        return Integer.highestOneBit(Math.max(16, count) * 4 - 1);
+    }
+
+    private static int hashSlot(long high, long low) {
+        return mix((int) (high ^ (high >>> 32) ^ low));
+    }
+
+    private static int entryHash(int parent, int nameId) {
+        return mix(parent * 0x9E3779B1 + nameId);
+    }
+
+    private static int mix(int hash) {
+        hash *= 0x85EBCA6B;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -1,8 +1,7 @@
 package common.model;
 
-import java.util.List;
-
+// Entries of the client's manifest that have to be uploaded
 public record TaskList(
-        List<FileInfo> outdatedFiles
+        int[] outdatedFiles
 ) {
 }
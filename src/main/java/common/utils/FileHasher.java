@@ -0,0 +1,246 @@
+package common.utils;
+
+import common.json.JsonUtils;
+import common.model.Manifest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Fills the hash column of a manifest. Hashes are cached against (size, mtime, file key)
+// in a previous manifest, so unchanged files are never read again
+public class FileHasher {
+    private static final long MAPPED_THRESHOLD = 1024 * 1024;
+    // A mapped file stays mapped until GC and cannot be moved, deleted or truncated meanwhile on Windows
+    private static final boolean MAP_LARGE_FILES = !System.getProperty("os.name").startsWith("Windows");
+    private static final long MAPPED_CHUNK = 64L * 1024 * 1024;
+    private static final int ENTRIES_PER_TASK = 256;
+
+    private final int threads;
+
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(64 * 1024));
+
+    public FileHasher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public FileHasher(int threads) {
+        this.threads = threads;
+    }
+
+    public void hash(Path basePath, Manifest manifest, Path cacheFile) throws IOException {
+        HashCache cache = loadCache(cacheFile);
+        int[] cached = cache == null ? null : manifest.match(cache.files());
+
+        manifest.enableHashes();
+        String[] fileKeys = new String[manifest.size()];
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> tasks = new ArrayList<>();
+            for (int from = 0; from < manifest.size(); from += ENTRIES_PER_TASK) {
+                int start = from;
+                int end = Math.min(from + ENTRIES_PER_TASK, manifest.size());
+                tasks.add(pool.submit(() -> hashRange(basePath, manifest, start, end, cache, cached, fileKeys)));
+            }
+
+            int hashed = 0;
+            for (Future<Integer> task : tasks) hashed += task.get();
+            System.out.println("Hashed " + hashed + " files, " + (countFiles(manifest) - hashed) + " taken from cache.");
+        } catch (ExecutionException e) {
+            throw new IOException("Hashing failed: " + e.getCause().getMessage(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Hashing interrupted");
+        } finally {
+            pool.shutdownNow();
+        }
+
+        saveCache(cacheFile, new HashCache(manifest, fileKeys));
+    }
+
+    private int hashRange(Path basePath, Manifest manifest, int start, int end,
+                          HashCache cache, int[] cached, String[] fileKeys) {
+        int hashed = 0;
+
+        for (int entry = start; entry < end; entry++) {
+            // Entries may come with a hash already, e.g. files the server keeps packed in segments
+            if (manifest.isDirectory(entry) || manifest.isHashed(entry)) continue;
+
+            Path file = basePath.resolve(manifest.path(entry));
+            try {
+                BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                // Kept whole, e.g. device and inode, so two files never share a key
+                String fileKey = attrs.fileKey() == null ? null : attrs.fileKey().toString();
+                fileKeys[entry] = fileKey;
+
+                // A renamed or moved file keeps its file key, so it is looked up by that when the path is new.
+                // Without file keys (e.g. on Windows) only the entry at the same path can match
+                int previous = cached == null ? Manifest.NOT_FOUND : cached[entry];
+                if (cache != null && (previous == Manifest.NOT_FOUND || !cache.matches(previous, attrs, fileKey))) {
+                    previous = cache.findByFileKey(fileKey);
+                }
+
+                if (previous != Manifest.NOT_FOUND && cache.matches(previous, attrs, fileKey)) {
+                    Manifest files = cache.files();
+                    manifest.setHash(entry, files.hashHigh(previous), files.hashLow(previous));
+                    continue;
+                }
+
+                hashFile(file, attrs.size(), manifest, entry);
+                hashed++;
+            } catch (IOException e) {
+                // Left without a hash, the file is then compared by modification date only
+                System.err.println("Could not hash: " + file + " (" + e.getMessage() + ")");
+            }
+        }
+        return hashed;
+    }
+
+    private void hashFile(Path file, long size, Manifest manifest, int entry) throws IOException {
+        MessageDigest digest = digests.get();
+        digest.reset();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (MAP_LARGE_FILES && size >= MAPPED_THRESHOLD) {
+                for (long position = 0; position < size; position += MAPPED_CHUNK) {
+                    MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                            Math.min(MAPPED_CHUNK, size - position));
+                    digest.update(mapped);
+                }
+            } else {
+                ByteBuffer buffer = buffers.get();
+                buffer.clear();
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+
+        setHash(manifest, entry, digest.digest());
+    }
+
+    // Same hash as for a file with this content, the buffer position is left untouched
+    public static void hashContent(ByteBuffer content, Manifest manifest, int entry) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(content.duplicate());
+            setHash(manifest, entry, digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setHash(Manifest manifest, int entry, byte[] digest) {
+        ByteBuffer result = ByteBuffer.wrap(digest);
+        manifest.setHash(entry, result.getLong(0), result.getLong(8));
+    }
+
+    private int countFiles(Manifest manifest) {
+        int files = 0;
+        for (int entry = 0; entry < manifest.size(); entry++) {
+            if (!manifest.isDirectory(entry)) files++;
+        }
+        return files;
+    }
+
+    private HashCache loadCache(Path cacheFile) {
+        if (!Files.exists(cacheFile)) return null;
+        try {
+            HashCache cache = JsonUtils.fromJson(Files.readString(cacheFile), HashCache.class);
+            if (cache == null || cache.files() == null || !cache.files().hasHashes()) return null;
+            if (cache.fileKeys == null || cache.fileKeys.length != cache.files().size()) return null;
+
+            cache.indexFileKeys();
+            return cache;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Ignoring unreadable hash cache: " + cacheFile);
+            return null;
+        }
+    }
+
+    private void saveCache(Path cacheFile, HashCache cache) {
+        try {
+            Files.createDirectories(cacheFile.getParent());
+            Path temp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            Files.writeString(temp, JsonUtils.toJson(cache));
+            Files.move(temp, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("Could not save hash cache: " + e.getMessage());
+        }
+    }
+
+    private static class HashCache {
+        private final Manifest files;
+        private final String[] fileKeys;
+        private transient int[] keySlots;
+
+        HashCache(Manifest files, String[] fileKeys) {
+            this.files = files;
+            this.fileKeys = fileKeys;
+        }
+
+        Manifest files() {
+            return files;
+        }
+
+        boolean matches(int entry, BasicFileAttributes attrs, String fileKey) {
+            return files.isHashed(entry)
+                    && files.fileSize(entry) == attrs.size()
+                    && files.modificationDate(entry) == attrs.lastModifiedTime().toMillis()
+                    && Objects.equals(fileKeys[entry], fileKey);
+        }
+
+        // Built before hashing starts, the hashing threads only read it
+        void indexFileKeys() {
+            keySlots = new int[Integer.highestOneBit(Math.max(16, fileKeys.length) * 4 - 1)];
+            int mask = keySlots.length - 1;
+            for (int entry = 0; entry < fileKeys.length; entry++) {
+                if (fileKeys[entry] == null) continue;
+
+                int slot = slotOf(fileKeys[entry], mask);
+                while (keySlots[slot] != 0) slot = (slot + 1) & mask;
+                keySlots[slot] = entry + 1;
+            }
+        }
+
+        int findByFileKey(String fileKey) {
+            if (fileKey == null) return Manifest.NOT_FOUND;
+
+            int mask = keySlots.length - 1;
+            for (int slot = slotOf(fileKey, mask); keySlots[slot] != 0; slot = (slot + 1) & mask) {
+                int entry = keySlots[slot] - 1;
+                if (fileKey.equals(fileKeys[entry])) return entry;
+            }
+            return Manifest.NOT_FOUND;
+        }
+
+        private static int slotOf(String fileKey, int mask) {
+            return (fileKey.hashCode() * 0x9E3779B9) & mask;
+        }
+    }
+}
@@ -1,68 +1,92 @@
 package common.utils;
 
-import common.model.FileInfo;
+import common.model.Manifest;
 
 import java.io.IOException;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.stream.Stream;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.EnumSet;
 
 public class FileWorker {
     private final Path basePath;
-    private final boolean addDirectories;
 
-    public FileWorker(Path basePath, boolean addDirectories) {
+    public FileWorker(Path basePath) {
         this.basePath = basePath;
-        this.addDirectories = addDirectories;
     }
 
-    public List<FileInfo> walkFolder() {
-        return walkFolder(basePath);
-    }
+    public Manifest walkFolder() throws IOException {
+        // A missing path still fails with NoSuchFileException from the walk itself
+        if (Files.exists(basePath) && !Files.isDirectory(basePath)) throw new NotDirectoryException(basePath.toString());
+
+        Manifest manifest = new Manifest();
+
+        // Directories are visited before their content, so every parent entry exists when a child is added.
+        // Links are followed, so sizes and dates are those of the content the Client sends
+        Files.walkFileTree(basePath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            private int[] directories = new int[64];
+            private int depth;
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                int entry = dir.equals(basePath)
+                        ? Manifest.ROOT
+                        : manifest.addDirectory(current(), dir.getFileName().toString(), attrs.lastModifiedTime().toMillis());
+
+                if (depth == directories.length) directories = Arrays.copyOf(directories, depth * 2);
+                directories[depth++] = entry;
+                return FileVisitResult.CONTINUE;
+            }
 
-    private List<FileInfo> walkFolder(Path directory) {
-        List<FileInfo> allFiles = new ArrayList<>();
-
-        try (Stream<Path> paths = Files.list(directory)) {
-            paths.forEach(file -> {
-                if (Files.isDirectory(file)) {
-                    allFiles.addAll(this.walkFolder(file));
-                    if (addDirectories) {
-                        try {
-                            FileInfo fileInfo = new FileInfo(
-                                    basePath.relativize(file).toString(),
-                                    Files.getLastModifiedTime(file).toMillis());
-                            allFiles.add(fileInfo);
-                        } catch (IOException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                } else {
-                    try {
-                        FileInfo fileInfo = new FileInfo(
-                                basePath.relativize(file).toString(),
-                                Files.getLastModifiedTime(file).toMillis());
-                        allFiles.add(fileInfo);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // Only a broken link still comes with its own attributes, there is nothing to send for it
+                if (attrs.isSymbolicLink()) {
+                    System.err.println("Skipping broken link: " + file);
+                    return FileVisitResult.CONTINUE;
                 }
-            });
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+                manifest.addFile(current(), file.getFileName().toString(), attrs.lastModifiedTime().toMillis(), attrs.size());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (file.equals(basePath)) throw e;
+                if (e instanceof FileSystemLoopException) {
+                    System.err.println("Skipping link back into its own parent: " + file);
+                    return FileVisitResult.CONTINUE;
+                }
+                System.err.println("Could not read: " + file + " (" + e.getMessage() + ")");
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                depth--;
+                return FileVisitResult.CONTINUE;
+            }
+
+            private int current() {
+                return directories[depth - 1];
+            }
+        });
 
-        return allFiles;
+        manifest.trimToSize();
+        return manifest;
     }
 
-    public void showFolderContent() {
-        List<FileInfo> list = walkFolder();
+    public void showFolderContent() throws IOException {
+        Manifest manifest = walkFolder();
 
-        for (FileInfo file : list) {
-            System.out.println(file.filePath());
-            System.out.println(file.modificationDate());
+        for (int i = 0; i < manifest.size(); i++) {
+            System.out.println(manifest.path(i));
+            System.out.println(manifest.modificationDate(i));
             System.out.println("======================");
         }
     }
@@ -0,0 +1,43 @@
+package loadtest;
+
+import java.util.Arrays;
+
+class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int count;
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+    }
+
+    synchronized Percentiles percentiles() {
+        if (count == 0) return new Percentiles(0, 0, 0, 0, 0, 0);
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        long sum = 0;
+        for (long sample : sorted) sum += sample;
+
+        return new Percentiles(count, millis(sum / count), millis(at(sorted, 0.50)),
+                millis(at(sorted, 0.90)), millis(at(sorted, 0.99)), millis(sorted[count - 1]));
+    }
+
+    private static long at(long[] sorted, double quantile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(quantile * sorted.length) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+
+    record Percentiles(
+            int count,
+            double meanMillis,
+            double p50Millis,
+            double p90Millis,
+            double p99Millis,
+            double maxMillis
+    ) {
+    }
+}
@@ -0,0 +1,17 @@
+package loadtest;
+
+import java.util.Map;
+
+public record LoadReport(
+        String label,
+        String startedAt,
+        LoadTestConfig config,
+        int sessions,
+        int failedSessions,
+        long filesUploaded,
+        double durationSeconds,
+        double sessionsPerSecond,
+        Map<String, LatencyRecorder.Percentiles> phases,
+        ResourceSampler.Usage resources
+) {
+}
@@ -0,0 +1,259 @@
+package loadtest;
+
+import client.Client;
+import client.SessionStats;
+import common.json.JsonUtils;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Simulates a fleet of Clients on virtual threads against a local or remote server, e.g.
+// java -cp ... loadtest.LoadTest label=1.1 clients=2000 files=200 changeRate=0.1 compare=loadtest-reports/1.0.json
+public class LoadTest {
+    private static final List<String> PHASES = List.of("admissionWait", "manifestBuild", "taskListRoundTrip", "upload", "completion", "total");
+
+    private final LoadTestConfig config;
+    private final PrintStream console;
+    private final Map<String, LatencyRecorder> latencies = new LinkedHashMap<>();
+    private final AtomicInteger sessions = new AtomicInteger();
+    private final AtomicInteger failedSessions = new AtomicInteger();
+    private final AtomicLong filesUploaded = new AtomicLong();
+    private Process serverProcess;
+
+    LoadTest(LoadTestConfig config, PrintStream console) {
+        this.config = config;
+        this.console = console;
+        for (String phase : PHASES) latencies.put(phase, new LatencyRecorder());
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestConfig config = LoadTestConfig.parse(args);
+        PrintStream console = System.out;
+
+        // Server and Client progress logs would drown the results
+        if (config.quiet()) System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        LoadReport report = new LoadTest(config, console).run();
+        Path reportFile = writeReport(config, report);
+        console.println("Report written to: " + reportFile);
+
+        if (config.compareWith() != null) {
+            LoadReport previous = JsonUtils.fromJson(Files.readString(Paths.get(config.compareWith())), LoadReport.class);
+            printComparison(console, previous, report);
+        }
+        System.exit(0);
+    }
+
+    LoadReport run() throws IOException, InterruptedException {
+        Path workDir = Paths.get(config.workDir()).toAbsolutePath();
+
+        // Archive and hash caches left by an earlier run would turn uploads into no-ops
+        for (String state : List.of("server", "clients", "hash-cache")) deleteRecursively(workDir.resolve(state));
+        InetSocketAddress server = startServer(workDir);
+
+        console.println("Generating " + config.clients() + " trees of " + config.filesPerClient() + " files...");
+        TreeGenerator[] trees = new TreeGenerator[config.clients()];
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < config.clients(); c++) {
+                trees[c] = new TreeGenerator(config, workDir.resolve("clients").resolve("client-" + c), c);
+                TreeGenerator tree = trees[c];
+                executor.submit(() -> {
+                    tree.generate();
+                    return null;
+                });
+            }
+        }
+
+        if (serverProcess != null) sendToServer("start");
+
+        String startedAt = LocalDateTime.now().toString();
+        long started = System.nanoTime();
+
+        console.println("Running " + config.clients() + " clients x " + config.rounds() + " rounds against " + server + "...");
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        for (int c = 0; c < config.clients(); c++) {
+            int clientNumber = c;
+            executor.submit(() -> simulateClient(clientNumber, trees[clientNumber], server, workDir.resolve("hash-cache")));
+        }
+        executor.shutdown();
+
+        while (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+            console.println("  " + sessions.get() + " sessions done, " + failedSessions.get() + " failed");
+        }
+
+        double durationSeconds = (System.nanoTime() - started) / 1e9;
+
+        // Only a local server can be sampled, a remote one is left out of the report
+        ResourceSampler.Usage resources = serverProcess == null ? null : stopServer();
+
+        Map<String, LatencyRecorder.Percentiles> phases = new LinkedHashMap<>();
+        latencies.forEach((phase, recorder) -> phases.put(phase, recorder.percentiles()));
+
+        LoadReport report = new LoadReport(config.label(), startedAt, config, sessions.get(), failedSessions.get(),
+                filesUploaded.get(), durationSeconds, sessions.get() / durationSeconds, phases, resources);
+        printReport(console, report);
+        return report;
+    }
+
+    private void simulateClient(int clientNumber, TreeGenerator tree, InetSocketAddress server, Path hashCache) {
+        Client client = new Client(server, "load-" + clientNumber, tree.getRoot().toString(), config.hashContent(), hashCache);
+        Random jitter = new Random(clientNumber);
+
+        try {
+            if (config.rampUpMillis() > 0) Thread.sleep(config.rampUpMillis() * clientNumber / config.clients());
+
+            for (int round = 0; round < config.rounds(); round++) {
+                if (round > 0) {
+                    // +/- 20% around the interval, so Clients do not stay in lockstep
+                    Thread.sleep((long) (config.syncIntervalMillis() * (0.8 + 0.4 * jitter.nextDouble())));
+                    tree.mutate();
+                }
+
+                try {
+                    SessionStats stats = client.syncOnce();
+                    record(stats);
+                } catch (IOException e) {
+                    failedSessions.incrementAndGet();
+                    System.err.println("Session of load-" + clientNumber + " failed: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Could not mutate tree of load-" + clientNumber + ": " + e.getMessage());
+        }
+    }
+
+    private void record(SessionStats stats) {
+        latencies.get("admissionWait").record(stats.admissionWait());
+        latencies.get("manifestBuild").record(stats.manifestBuild());
+        latencies.get("taskListRoundTrip").record(stats.taskListRoundTrip());
+        latencies.get("upload").record(stats.upload());
+        latencies.get("completion").record(stats.completion());
+        latencies.get("total").record(stats.total());
+        filesUploaded.addAndGet(stats.filesSent());
+        sessions.incrementAndGet();
+    }
+
+    private InetSocketAddress startServer(Path workDir) throws IOException, InterruptedException {
+        if (!"local".equals(config.server())) {
+            int separator = config.server().lastIndexOf(':');
+            return new InetSocketAddress(config.server().substring(0, separator),
+                    Integer.parseInt(config.server().substring(separator + 1)));
+        }
+
+        Path serverDir = workDir.resolve("server");
+        Files.createDirectories(serverDir);
+        serverProcess = new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-cp", System.getProperty("java.class.path"), LoadTestServer.class.getName(),
+                String.valueOf(config.port()), serverDir.resolve("archive").toString(), String.valueOf(config.packThreshold()))
+                .redirectError(serverDir.resolve("server.log").toFile())
+                .start();
+
+        // Wait until the local server accepts connections
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", config.port());
+        for (int attempt = 0; ; attempt++) {
+            try (Socket probe = new Socket()) {
+                probe.connect(address, 1000);
+                return address;
+            } catch (IOException e) {
+                if (attempt == 50 || !serverProcess.isAlive()) {
+                    serverProcess.destroy();
+                    throw new IOException("Local server did not start on port " + config.port());
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private void sendToServer(String command) throws IOException {
+        OutputStream commands = serverProcess.getOutputStream();
+        commands.write((command + "\n").getBytes());
+        commands.flush();
+    }
+
+    private ResourceSampler.Usage stopServer() throws IOException, InterruptedException {
+        sendToServer("stop");
+        try (BufferedReader results = new BufferedReader(new InputStreamReader(serverProcess.getInputStream()))) {
+            String usage = results.readLine();
+            if (usage == null) throw new IOException("Local server exited without reporting its resource usage");
+            return JsonUtils.fromJson(usage, ResourceSampler.Usage.class);
+        } finally {
+            if (!serverProcess.waitFor(10, TimeUnit.SECONDS)) serverProcess.destroyForcibly();
+        }
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) Files.delete(path);
+        }
+    }
+
+    private static Path writeReport(LoadTestConfig config, LoadReport report) throws IOException {
+        Path reportDir = Paths.get(config.reportDir());
+        Files.createDirectories(reportDir);
+
+        String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss"));
+        Path reportFile = reportDir.resolve(report.label() + "-" + timestamp + ".json");
+        Files.writeString(reportFile, JsonUtils.toJson(report));
+        return reportFile;
+    }
+
+    private static void printReport(PrintStream out, LoadReport report) {
+        out.println();
+        out.printf("%s: %d sessions (%d failed) in %.1f s, %.2f sessions/s, %d files uploaded%n",
+                report.label(), report.sessions(), report.failedSessions(), report.durationSeconds(),
+                report.sessionsPerSecond(), report.filesUploaded());
+        out.printf("%-18s %8s %10s %10s %10s %10s%n", "phase [ms]", "count", "p50", "p90", "p99", "max");
+        report.phases().forEach((phase, p) -> out.printf("%-18s %8d %10.1f %10.1f %10.1f %10.1f%n",
+                phase, p.count(), p.p50Millis(), p.p90Millis(), p.p99Millis(), p.maxMillis()));
+
+        ResourceSampler.Usage usage = report.resources();
+        if (usage == null) {
+            out.println("server heap/cpu: not sampled for a remote server");
+            return;
+        }
+        out.printf("server heap avg/max: %d/%d MB, cpu avg/max: %.0f/%.0f %%, gc: %d collections, %d ms%n",
+                usage.avgHeapMb(), usage.maxHeapMb(), usage.avgCpuPercent(), usage.maxCpuPercent(),
+                usage.gcCount(), usage.gcMillis());
+    }
+
+    private static void printComparison(PrintStream out, LoadReport previous, LoadReport current) {
+        out.println();
+        out.printf("%-28s %12s %12s %9s%n", previous.label() + " -> " + current.label(), "before", "after", "change");
+        compare(out, "sessions/s", previous.sessionsPerSecond(), current.sessionsPerSecond());
+        for (String phase : PHASES) {
+            LatencyRecorder.Percentiles before = previous.phases().get(phase);
+            LatencyRecorder.Percentiles after = current.phases().get(phase);
+            if (before == null || after == null) continue;
+            compare(out, phase + " p50 [ms]", before.p50Millis(), after.p50Millis());
+            compare(out, phase + " p99 [ms]", before.p99Millis(), after.p99Millis());
+        }
+        if (previous.resources() == null || current.resources() == null) return;
+        compare(out, "max heap [MB]", previous.resources().maxHeapMb(), current.resources().maxHeapMb());
+        compare(out, "avg cpu [%]", previous.resources().avgCpuPercent(), current.resources().avgCpuPercent());
+    }
+
+    private static void compare(PrintStream out, String metric, double before, double after) {
+        String change = before == 0 ? "-" : String.format("%+.1f%%", (after - before) / before * 100);
+        out.printf("%-28s %12.2f %12.2f %9s%n", metric, before, after, change);
+    }
+}
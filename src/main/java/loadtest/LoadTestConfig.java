@@ -0,0 +1,66 @@
+package loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public record LoadTestConfig(
+        String label,
+        String server,
+        int port,
+        int clients,
+        int rounds,
+        int filesPerClient,
+        int directoryFanOut,
+        String sizeDistribution,
+        long medianFileSize,
+        long maxFileSize,
+        double changeRate,
+        long syncIntervalMillis,
+        long rampUpMillis,
+        boolean hashContent,
+        int packThreshold,
+        String workDir,
+        String reportDir,
+        String compareWith,
+        boolean quiet
+) {
+    // Arguments are given as key=value, e.g. clients=2000 files=500 sizes=lognormal
+    public static LoadTestConfig parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator <= 0) throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            options.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+
+        LoadTestConfig config = new LoadTestConfig(
+                options.getOrDefault("label", "dev"),
+                options.getOrDefault("server", "local"),
+                Integer.parseInt(options.getOrDefault("port", "7900")),
+                Integer.parseInt(options.getOrDefault("clients", "200")),
+                Integer.parseInt(options.getOrDefault("rounds", "3")),
+                Integer.parseInt(options.getOrDefault("files", "100")),
+                Integer.parseInt(options.getOrDefault("fanOut", "8")),
+                options.getOrDefault("sizes", "lognormal"),
+                Long.parseLong(options.getOrDefault("medianSize", "16384")),
+                Long.parseLong(options.getOrDefault("maxSize", "4194304")),
+                Double.parseDouble(options.getOrDefault("changeRate", "0.05")),
+                Long.parseLong(options.getOrDefault("interval", "2000")),
+                Long.parseLong(options.getOrDefault("rampUp", "0")),
+                Boolean.parseBoolean(options.getOrDefault("hash", "false")),
+                Integer.parseInt(options.getOrDefault("pack", "0")),
+                options.getOrDefault("workDir", "loadtest-work"),
+                options.getOrDefault("reportDir", "loadtest-reports"),
+                options.get("compare"),
+                Boolean.parseBoolean(options.getOrDefault("quiet", "true"))
+        );
+
+        if (!config.sizeDistribution().matches("fixed|uniform|lognormal")) {
+            throw new IllegalArgumentException("Unknown size distribution: " + config.sizeDistribution());
+        }
+        if (config.packThreshold() < 0 || config.packThreshold() > 64 * 1024) {
+            throw new IllegalArgumentException("Pack threshold must be between 0 and 65536 bytes: " + config.packThreshold());
+        }
+        return config;
+    }
+}
@@ -0,0 +1,45 @@
+package loadtest;
+
+import common.json.JsonUtils;
+import server.TCPServer;
+import server.replication.Replication;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+// Local server under test, run by LoadTest as a JVM of its own so heap and CPU are sampled for the
+// server alone. Sampling starts at the first line read from stdin, the second line (or stdin closing)
+// stops it, and the usage is printed as one JSON line before exiting, e.g.
+// java -cp ... loadtest.LoadTestServer 7900 loadtest-work/server/archive 0
+public class LoadTestServer {
+    public static void main(String[] args) throws IOException {
+        int port = Integer.parseInt(args[0]);
+        Path archiveDir = Paths.get(args[1]);
+        int packThreshold = Integer.parseInt(args[2]);
+
+        // Server progress logs would get mixed into the result line
+        PrintStream results = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        Thread serverThread = new Thread(new TCPServer(port, 1, new Replication(0, List.of()), archiveDir, packThreshold));
+        serverThread.setDaemon(true);
+        serverThread.start();
+
+        BufferedReader commands = new BufferedReader(new InputStreamReader(System.in));
+        commands.readLine();
+
+        ResourceSampler sampler = new ResourceSampler();
+        Thread samplerThread = new Thread(sampler, "loadtest-sampler");
+        samplerThread.setDaemon(true);
+        samplerThread.start();
+
+        commands.readLine();
+        sampler.stop();
+
+        results.println(JsonUtils.toJson(sampler.usage()));
+        results.flush();
+        System.exit(0);
+    }
+}
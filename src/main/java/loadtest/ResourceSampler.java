@@ -0,0 +1,80 @@
+package loadtest;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+
+// Samples heap and CPU of the JVM it runs in, for load tests that is the local server process
+class ResourceSampler implements Runnable {
+    private static final long SAMPLE_MILLIS = 250;
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+
+    private volatile boolean running = true;
+    private long samples;
+    private long heapSum;
+    private long maxHeap;
+    private double cpuSum;
+    private double maxCpu;
+    private long startGcCount;
+    private long startGcMillis;
+
+    @Override
+    public void run() {
+        startGcCount = gcCount();
+        startGcMillis = gcMillis();
+
+        while (running) {
+            long heap = memory.getHeapMemoryUsage().getUsed();
+            double cpu = Math.max(0, os.getProcessCpuLoad());
+
+            synchronized (this) {
+                samples++;
+                heapSum += heap;
+                maxHeap = Math.max(maxHeap, heap);
+                cpuSum += cpu;
+                maxCpu = Math.max(maxCpu, cpu);
+            }
+
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    synchronized Usage usage() {
+        long count = Math.max(1, samples);
+        return new Usage(heapSum / count / (1024 * 1024), maxHeap / (1024 * 1024),
+                cpuSum / count * 100, maxCpu * 100, gcCount() - startGcCount, gcMillis() - startGcMillis);
+    }
+
+    private long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    record Usage(
+            long avgHeapMb,
+            long maxHeapMb,
+            double avgCpuPercent,
+            double maxCpuPercent,
+            long gcCount,
+            long gcMillis
+    ) {
+    }
+}
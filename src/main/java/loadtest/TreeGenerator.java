@@ -0,0 +1,77 @@
+package loadtest;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+// Builds and mutates one simulated Client directory. Seeded per Client, so every run
+// and every version under test works on the same trees
+class TreeGenerator {
+    private static final int FILES_PER_DIRECTORY = 32;
+    private static final double LOGNORMAL_SIGMA = 1.5;
+
+    private final LoadTestConfig config;
+    private final Path root;
+    private final Random random;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    TreeGenerator(LoadTestConfig config, Path root, long seed) {
+        this.config = config;
+        this.root = root;
+        this.random = new Random(seed);
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    void generate() throws IOException {
+        for (int file = 0; file < config.filesPerClient(); file++) {
+            write(pathFor(file), nextSize());
+        }
+    }
+
+    // Rewrites a change-rate share of the files with new content and size
+    int mutate() throws IOException {
+        int changes = (int) Math.round(config.filesPerClient() * config.changeRate());
+        for (int i = 0; i < changes; i++) {
+            write(pathFor(random.nextInt(config.filesPerClient())), nextSize());
+        }
+        return changes;
+    }
+
+    // Directory number written in fan-out digits gives the nesting, e.g. d3/d1/d7/f1234.bin
+    private Path pathFor(int file) {
+        int directory = file / FILES_PER_DIRECTORY;
+        Path path = root;
+        do {
+            path = path.resolve("d" + directory % config.directoryFanOut());
+            directory /= config.directoryFanOut();
+        } while (directory > 0);
+        return path.resolve("f" + file + ".bin");
+    }
+
+    private long nextSize() {
+        long size = switch (config.sizeDistribution()) {
+            case "fixed" -> config.medianFileSize();
+            case "uniform" -> (long) (random.nextDouble() * 2 * config.medianFileSize());
+            default -> (long) (config.medianFileSize() * Math.exp(LOGNORMAL_SIGMA * random.nextGaussian()));
+        };
+        return Math.min(size, config.maxFileSize());
+    }
+
+    private void write(Path file, long size) throws IOException {
+        Files.createDirectories(file.getParent());
+        try (OutputStream out = Files.newOutputStream(file)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int count = (int) Math.min(buffer.length, remaining);
+                random.nextBytes(buffer);
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+        }
+    }
+}
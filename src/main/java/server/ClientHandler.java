@@ -2,31 +2,46 @@ package server;
 
 import common.json.JsonUtils;
 import common.model.ClientData;
-import common.model.FileInfo;
+import common.model.Manifest;
 import common.model.TaskList;
-import common.utils.FileWorker;
+import common.utils.FileHasher;
+import server.replication.ChangeLog;
+import server.storage.ArchiveStorage;
+import server.storage.BufferPool;
+import server.storage.ClientArchive;
+import server.storage.DiskWriterPool;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
 
 public class ClientHandler implements Runnable {
     private final Socket clientSocket;
     private final int syncInterval;
-    private final Path archivePath;
+    private final ArchiveStorage storage;
     private final Runnable onComplete;
+    private final ChangeLog changeLog;
+    private final DiskWriterPool writerPool;
 
 
-    public ClientHandler(Socket socket, int syncInterval, Path archivePath, Runnable onComplete) {
+    public ClientHandler(Socket socket, int syncInterval, ArchiveStorage storage, ChangeLog changeLog,
+                         DiskWriterPool writerPool, Runnable onComplete) {
         this.clientSocket = socket;
         this.syncInterval = syncInterval;
-        this.archivePath = archivePath;
+        this.storage = storage;
+        this.changeLog = changeLog;
+        this.writerPool = writerPool;
         this.onComplete = onComplete;
     }
 
@@ -35,28 +50,38 @@ public class ClientHandler implements Runnable {
 
         System.out.println("ClientHandler started for: " + clientSocket.getRemoteSocketAddress());
 
+        ClientArchive archive = null;
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
              BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()))
         ) {
             // Read Client files to archive
             String json = reader.readLine();
+            if (json == null) {
+                System.out.println("Client disconnected before sending its files.");
+                return;
+            }
             ClientData clientData = JsonUtils.fromJson(json, ClientData.class);
 
             // Setting Client path in archive
             Path clientsDirectory = getClientsDir(clientData.clientId());
+            archive = storage.forClient(clientData.clientId());
 
             // Get information about files in the Client directory on Server and Client side
-            FileWorker fileWorker = new FileWorker(clientsDirectory, true);
-            List<FileInfo> filesServerside = fileWorker.walkFolder();
-            List<FileInfo> filesClientside = clientData.files();
+            Manifest filesServerside = archive.walk();
+            Manifest filesClientside = clientData.files();
+
+            // Client sent content hashes, so archived files are hashed too and identical content is never re-sent
+            if (filesClientside.hasHashes()) {
+                new FileHasher().hash(clientsDirectory, filesServerside, getHashCacheFile(clientData.clientId()));
+            }
 
-            // Create map based on Map<Filepath, ModificationDate> with files on server
-            Map<String, Long> serverFilesMap = new HashMap<>();
-            for (FileInfo file : filesServerside) serverFilesMap.put(file.filePath(), file.modificationDate());
+            // Archived files reused for other paths, as the Client entry each one was moved to
+            int[] relocatedTo = new int[filesServerside.size()];
+            Arrays.fill(relocatedTo, Manifest.NOT_FOUND);
 
             // Get outdated files
-            List<FileInfo> outdatedFiles = getOutdatedFiles(serverFilesMap, filesClientside);
-            int filesToUpdate = outdatedFiles.size();
+            int[] outdatedFiles = getOutdatedFiles(filesServerside, filesClientside, relocatedTo, archive, clientData.clientId());
+            int filesToUpdate = outdatedFiles.length;
 
             // Create and send files that needs to be uploaded/updated
             TaskList taskList = new TaskList(outdatedFiles);
@@ -69,10 +94,18 @@ public class ClientHandler implements Runnable {
             if (filesToUpdate != 0) System.out.println("- Sent information about files needed to be uploaded ! -\n");
             else System.out.println("- None of the files needs to be updated ! -\n");
 
+            List<CompletableFuture<Long>> pendingWrites = new ArrayList<>();
+            boolean writesSettled = false;
             try (DataInputStream dataIn = new DataInputStream(clientSocket.getInputStream())) {
-                // Download files
-                for (int i = 0; i < taskList.outdatedFiles().size(); i++) {
-                    downloadFile(dataIn, clientData);
+                try {
+                    // Download files, writing them to disk happens on the writer pool
+                    ReadableByteChannel channel = Channels.newChannel(dataIn);
+                    for (int i = 0; i < taskList.outdatedFiles().length; i++) {
+                        pendingWrites.add(downloadFile(dataIn, channel, archive, clientData.clientId()));
+                    }
+                } finally {
+                    // Files have to be on disk before the session goes on, also when receiving failed halfway
+                    writesSettled = awaitWrites(pendingWrites);
                 }
 
                 // Send next synchronization time
@@ -82,61 +115,148 @@ public class ClientHandler implements Runnable {
 
             } catch (IOException e) {
                 System.err.println("Problem occurred while receiving files: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("Interrupted while receiving files.");
             }
 
-            deleteRedundantFiles(filesServerside, filesClientside, clientsDirectory);
+            if (writesSettled) {
+                deleteRedundantFiles(filesServerside, filesClientside, relocatedTo, archive, clientData.clientId());
+                archive.compactLater();
+            } else {
+                System.err.println("Writes of this session did not finish, no archived file is deleted.");
+            }
             System.out.println("Client served, waiting for the next one...");
         } catch (IOException e) {
             System.err.println(e.getMessage());
         } finally {
+            if (archive != null) archive.close();
             onComplete.run();
         }
     }
 
-    private void deleteRedundantFiles(List<FileInfo> filesServerside, List<FileInfo> filesClientside, Path clientsDirectory) {
-        for (FileInfo serverFile : filesServerside) {
-            boolean existsOnClient = filesClientside.stream().anyMatch(clientFile -> clientFile.filePath().equals(serverFile.filePath()));
+    private void deleteRedundantFiles(Manifest filesServerside, Manifest filesClientside, int[] relocatedTo,
+                                      ClientArchive archive, String clientId) {
+        int[] clientMatches = filesServerside.match(filesClientside);
 
-            if (!existsOnClient) {
-                Path fileToDelete = clientsDirectory.resolve(serverFile.filePath());
+        // Children always follow their directory, so walking backwards empties directories before deleting them
+        for (int i = filesServerside.size() - 1; i >= 0; i--) {
+            if (clientMatches[i] == Manifest.NOT_FOUND && relocatedTo[i] == Manifest.NOT_FOUND) {
+                String filePath = filesServerside.path(i);
                 try {
-                    Files.deleteIfExists(fileToDelete);
-                    System.out.println("Successfully deleted file: " + fileToDelete);
+                    archive.delete(filePath);
+                    if (changeLog != null) changeLog.recordDelete(clientId, filePath);
+                    System.out.println("Successfully deleted file: " + filePath);
                 } catch (IOException e) {
-                    System.err.println("There was a problem with deleting: " + fileToDelete);
+                    System.err.println("There was a problem with deleting: " + filePath);
                 }
             }
         }
     }
 
-    private void downloadFile(DataInputStream dataIn, ClientData clientData) throws IOException {
+    private CompletableFuture<Long> downloadFile(DataInputStream dataIn, ReadableByteChannel channel, ClientArchive archive,
+                                                 String clientId) throws IOException, InterruptedException {
         String relativePath = dataIn.readUTF();
         long fileLength = dataIn.readLong();
         long lastModified = dataIn.readLong();
 
-        Path outputPath = archivePath.resolve(clientData.clientId()).resolve(relativePath);
-        Files.createDirectories(outputPath.getParent());
+        Path outputPath = archive.getDirectory().resolve(relativePath);
+        BufferPool bufferPool = writerPool.getBufferPool();
+        CompletableFuture<Long> written;
 
-        File outputFile = outputPath.toFile();
+        if (archive.packs(fileLength) && fileLength <= bufferPool.getBufferSize()) {
+            // Small file fits one buffer and is appended to the packed store on the lane of its directory
+            ByteBuffer buffer = bufferPool.acquire();
+            boolean handedOver = false;
+            try {
+                buffer.limit((int) fileLength);
+                readFully(channel, buffer, relativePath);
+                buffer.flip();
 
-        try (BufferedOutputStream fileOut = new BufferedOutputStream(new FileOutputStream(outputFile))) {
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            long totalRead = 0;
+                written = writerPool.submit(outputPath.getParent(), () -> {
+                    try {
+                        long length = buffer.remaining();
+                        archive.writePacked(relativePath, buffer, lastModified);
+                        return length;
+                    } finally {
+                        bufferPool.release(buffer);
+                    }
+                });
+                handedOver = true;
+            } finally {
+                if (!handedOver) bufferPool.release(buffer);
+            }
+        } else {
+            DiskWriterPool.PendingFile outputFile = writerPool.open(outputPath, storage.getStagingPath(), lastModified);
+
+            try {
+                long totalRead = 0;
+                while (totalRead < fileLength) {
+                    ByteBuffer buffer = bufferPool.acquire();
+                    boolean handedOver = false;
+                    try {
+                        buffer.limit((int) Math.min(buffer.capacity(), fileLength - totalRead));
+                        readFully(channel, buffer, relativePath);
+                        totalRead += buffer.position();
 
-            while (totalRead < fileLength &&
-                    (bytesRead = dataIn.read(buffer, 0, (int) Math.min(buffer.length, fileLength - totalRead))) != -1) {
-                fileOut.write(buffer, 0, bytesRead);
-                totalRead += bytesRead;
+                        buffer.flip();
+                        outputFile.write(buffer);
+                        handedOver = true;
+                    } finally {
+                        if (!handedOver) bufferPool.release(buffer);
+                    }
+                }
+            } catch (IOException e) {
+                outputFile.abort(e);
+                throw e;
+            } catch (InterruptedException e) {
+                outputFile.abort(new InterruptedIOException("Upload interrupted: " + relativePath));
+                throw e;
             }
-            System.out.println("File received: " + relativePath + " (" + totalRead + " bytes)");
+
+            written = outputFile.finish().thenApply(length -> {
+                try {
+                    archive.forgetPacked(relativePath);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return length;
+            });
+        }
+
+        return written.whenComplete((length, failure) -> {
+            if (failure != null) {
+                System.err.println("Could not write: " + outputPath + " (" + failure.getMessage() + ")");
+                return;
+            }
+            System.out.println("File received: " + relativePath + " (" + length + " bytes)");
+            if (changeLog != null) changeLog.recordWrite(clientId, relativePath, lastModified);
+        });
+    }
+
+    private void readFully(ReadableByteChannel channel, ByteBuffer buffer, String relativePath) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) throw new EOFException("Client disconnected while sending: " + relativePath);
         }
+    }
 
-        outputFile.setLastModified(lastModified);
+    // Returns false when interrupted before every write settled
+    private boolean awaitWrites(List<CompletableFuture<Long>> pendingWrites) {
+        for (CompletableFuture<Long> pendingWrite : pendingWrites) {
+            try {
+                pendingWrite.get();
+            } catch (ExecutionException ignored) {
+                // Already reported by the write itself
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
     }
 
     private Path getClientsDir(String path) throws IOException {
-        Path clientsDirectory = archivePath.resolve(path);
+        Path clientsDirectory = storage.getArchivePath().resolve(path);
 
         // Check if Client has folder for that id
         if (!Files.exists(clientsDirectory)) {
@@ -147,24 +267,95 @@ public class ClientHandler implements Runnable {
         return clientsDirectory;
     }
 
-    private List<FileInfo> getOutdatedFiles(Map<String, Long> serverFilesMap, List<FileInfo> filesClientside) {
-        List<FileInfo> outdatedFiles = new ArrayList<>();
+    private int[] getOutdatedFiles(Manifest filesServerside, Manifest filesClientside, int[] relocatedTo,
+                                   ClientArchive archive, String clientId) {
+        IntStream.Builder outdatedFiles = IntStream.builder();
+        int upToDate = 0;
+        int reused = 0;
 
         // Check if file that Client request is already on server and if it needs update
-        for (FileInfo file : filesClientside) {
-            Long modificationDate = serverFilesMap.get(file.filePath());
-            if (modificationDate != null) {
-                if (modificationDate.equals(file.modificationDate())) {
-                    System.out.println("File: " + file.filePath() + " is up to date.");
+        int[] serverMatches = filesClientside.match(filesServerside);
+        int[] clientMatches = filesClientside.hasHashes() ? filesServerside.match(filesClientside) : null;
+
+        for (int i = 0; i < filesClientside.size(); i++) {
+            if (filesClientside.isDirectory(i)) continue;
+
+            int serverFile = serverMatches[i];
+            if (serverFile != Manifest.NOT_FOUND) {
+                if (filesServerside.modificationDate(serverFile) == filesClientside.modificationDate(i)
+                        && filesServerside.fileSize(serverFile) == filesClientside.fileSize(i)) {
+                    upToDate++;
+                } else if (filesClientside.sameContent(i, filesServerside, serverFile)
+                        && touchArchivedFile(filesClientside, i, archive, clientId)) {
+                    upToDate++;
                 } else {
-                    System.out.println("File: " + file.filePath() + " needs to be updated.");
-                    outdatedFiles.add(file);
+                    System.out.println("File: " + filesClientside.path(i) + " needs to be updated.");
+                    outdatedFiles.add(i);
                 }
+            } else if (clientMatches != null
+                    && reuseArchivedFile(filesClientside, i, filesServerside, clientMatches, relocatedTo, archive, clientId)) {
+                reused++;
             } else {
-                System.out.println("File: " + file.filePath() + " needs to be uploaded.");
-                outdatedFiles.add(file);
+                System.out.println("File: " + filesClientside.path(i) + " needs to be uploaded.");
+                outdatedFiles.add(i);
             }
         }
-        return outdatedFiles;
+        System.out.println(upToDate + " files are up to date.");
+        if (reused != 0) System.out.println(reused + " files were moved or copied within the archive.");
+        return outdatedFiles.build().toArray();
+    }
+
+    // Content is the same and only the modification date differs, e.g. after a touch or a checkout
+    private boolean touchArchivedFile(Manifest filesClientside, int clientFile, ClientArchive archive, String clientId) {
+        String filePath = filesClientside.path(clientFile);
+        long modificationDate = filesClientside.modificationDate(clientFile);
+        try {
+            archive.setLastModified(filePath, modificationDate);
+        } catch (IOException e) {
+            return false;
+        }
+
+        if (changeLog != null) changeLog.recordWrite(clientId, filePath, modificationDate);
+        return true;
+    }
+
+    // Builds a Client file from archived content with the same hash: a local rename when the archived
+    // file is gone from the Client, a local copy when it is still needed at its own path
+    private boolean reuseArchivedFile(Manifest filesClientside, int clientFile, Manifest filesServerside,
+                                      int[] clientMatches, int[] relocatedTo, ClientArchive archive, String clientId) {
+        if (!filesClientside.isHashed(clientFile)) return false;
+
+        int source = filesServerside.findByHash(filesClientside.hashHigh(clientFile), filesClientside.hashLow(clientFile));
+        if (source == Manifest.NOT_FOUND || !filesClientside.sameContent(clientFile, filesServerside, source)) return false;
+
+        boolean move = clientMatches[source] == Manifest.NOT_FOUND && relocatedTo[source] == Manifest.NOT_FOUND;
+        String sourcePath = relocatedTo[source] == Manifest.NOT_FOUND
+                ? filesServerside.path(source)
+                : filesClientside.path(relocatedTo[source]);
+        String targetPath = filesClientside.path(clientFile);
+        long modificationDate = filesClientside.modificationDate(clientFile);
+
+        try {
+            if (move) {
+                archive.move(sourcePath, targetPath, modificationDate);
+                relocatedTo[source] = clientFile;
+            } else {
+                archive.copy(sourcePath, targetPath, modificationDate);
+            }
+        } catch (IOException e) {
+            System.err.println("Could not reuse " + sourcePath + " for " + targetPath + ": " + e.getMessage());
+            return false;
+        }
+
+        System.out.println("File: " + targetPath + (move ? " moved from " : " copied from ") + sourcePath + ".");
+        if (changeLog != null) {
+            changeLog.recordWrite(clientId, targetPath, modificationDate);
+            if (move) changeLog.recordDelete(clientId, sourcePath);
+        }
+        return true;
+    }
+
+    private Path getHashCacheFile(String clientId) {
+        return storage.getArchivePath().resolveSibling("hashes").resolve(clientId + ".json");
     }
 }
@@ -5,6 +5,7 @@ import common.model.Message;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 
 public class MulticastResponder implements Runnable {
     private final String multicastAddr = "224.0.0.2";
@@ -21,22 +22,30 @@ public class MulticastResponder implements Runnable {
             InetAddress group = InetAddress.getByName(multicastAddr);
             socket.joinGroup(group);
 
+            byte[] msgJson = JsonUtils.toJson(new Message("OFFER", tcpServerPort)).getBytes(StandardCharsets.UTF_8);
+            DatagramPacket responsePacket = new DatagramPacket(msgJson, msgJson.length, group, port);
+
+            // Announce right away, so clients waiting after a restart reconnect without another DISCOVER round
+            socket.send(responsePacket);
+
+            byte[] buf = new byte[256];
+            DatagramPacket datagramPacket = new DatagramPacket(buf, buf.length);
+
             while (true) {
-                byte[] buf = new byte[256];
-                DatagramPacket datagramPacket = new DatagramPacket(buf, buf.length);
+                datagramPacket.setLength(buf.length);
                 socket.receive(datagramPacket);
 
-                String json = new String(datagramPacket.getData(), 0, datagramPacket.getLength());
-                Message received = JsonUtils.fromJson(json, Message.class);
+                String json = new String(datagramPacket.getData(), 0, datagramPacket.getLength(), StandardCharsets.UTF_8);
+                Message received;
+                try {
+                    received = JsonUtils.fromJson(json, Message.class);
+                } catch (RuntimeException e) {
+                    continue;
+                }
 
-                if (!received.type().equals("DISCOVER")) continue;
+                if (received == null || !"DISCOVER".equals(received.type())) continue;
 
                 System.out.println("DISCOVER from: " + datagramPacket.getAddress());
-
-                Message responseMsg = new Message("OFFER", tcpServerPort);
-                byte[] msgJson = JsonUtils.toJson(responseMsg).getBytes();
-
-                DatagramPacket responsePacket = new DatagramPacket(msgJson, msgJson.length, group, port);
                 socket.send(responsePacket);
             }
 
@@ -1,7 +1,12 @@
 package server;
 
+import server.replication.Replication;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+
 public class Server {
-    public static void startServer(int port, int syncInterval){
-        new Thread(new TCPServer(port, syncInterval)).start();
+    public static void startServer(int port, int syncInterval, int replicationPort, List<InetSocketAddress> peers, int packThreshold){
+        new Thread(new TCPServer(port, syncInterval, new Replication(replicationPort, peers), packThreshold)).start();
     }
 }
@@ -1,5 +1,11 @@
 package server;
 
+import server.replication.ChangeLog;
+import server.replication.Replication;
+import server.storage.ArchiveStorage;
+import server.storage.BufferPool;
+import server.storage.DiskWriterPool;
+
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
@@ -15,23 +21,37 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public class TCPServer implements Runnable {
     private final int port;
     private final int syncInterval;
+    private final Replication replication;
+    private final Path archiveDir;
+    private final int packThreshold;
     private final BlockingQueue<Socket> clientQueue = new LinkedBlockingQueue<>();
     private final AtomicBoolean isBusy = new AtomicBoolean(false);
 
-    public TCPServer(int port, int syncInterval) {
+    private final DiskWriterPool writerPool = new DiskWriterPool(4, 32, new BufferPool(64, 64 * 1024));
+    private ChangeLog changeLog;
+
+    public TCPServer(int port, int syncInterval, Replication replication, int packThreshold) {
+        this(port, syncInterval, replication, Paths.get("archive"), packThreshold);
+    }
+
+    public TCPServer(int port, int syncInterval, Replication replication, Path archiveDir, int packThreshold) {
         this.port = port;
         this.syncInterval = syncInterval;
+        this.replication = replication;
+        this.archiveDir = archiveDir;
+        this.packThreshold = packThreshold;
     }
 
     @Override
     public void run() {
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            String archiveName = "archive";
-            Path archivePath = createUSPDir(archiveName);
+            Path archivePath = createUSPDir(archiveDir);
+            ArchiveStorage storage = new ArchiveStorage(archivePath, packThreshold);
+            changeLog = replication.start(storage, archivePath.resolveSibling("replication"));
 
             System.out.println("Server TCP started! Waiting for connections...");
 
-            Thread queueMonitor = getQueueThread(archivePath);
+            Thread queueMonitor = getQueueThread(storage);
             queueMonitor.start();
 
             while (true) {
@@ -57,7 +77,7 @@ public class TCPServer implements Runnable {
                         System.err.println("Error sending READY signal.");
                     }
                     isBusy.set(true);
-                    handleClient(clientSocket, archivePath);
+                    handleClient(clientSocket, storage);
                 }
             }
 
@@ -67,7 +87,7 @@ public class TCPServer implements Runnable {
         }
     }
 
-    private Thread getQueueThread(Path archivePath) {
+    private Thread getQueueThread(ArchiveStorage storage) {
         Thread queueMonitor = new Thread(() -> {
             while (true) {
                 try {
@@ -79,7 +99,7 @@ public class TCPServer implements Runnable {
                                 writer.write("READY\n");
                                 writer.flush();
                                 isBusy.set(true);
-                                handleClient(nextClient, archivePath);
+                                handleClient(nextClient, storage);
                             } catch (IOException e) {
                                 System.err.println("Error sending READY to queued client.");
                                 try {
@@ -99,8 +119,8 @@ public class TCPServer implements Runnable {
         return queueMonitor;
     }
 
-    private Path createUSPDir(String dirName) throws IOException {
-        Path path = Paths.get(dirName).toAbsolutePath();
+    private Path createUSPDir(Path dir) throws IOException {
+        Path path = dir.toAbsolutePath();
         if (!Files.exists(path)) {
             try {
                 Files.createDirectory(path);
@@ -111,8 +131,8 @@ public class TCPServer implements Runnable {
         return path;
     }
 
-    private void handleClient(Socket clientSocket, Path archivePath) {
-        ClientHandler handler = new ClientHandler(clientSocket, syncInterval, archivePath, () -> isBusy.set(false));
+    private void handleClient(Socket clientSocket, ArchiveStorage storage) {
+        ClientHandler handler = new ClientHandler(clientSocket, syncInterval, storage, changeLog, writerPool, () -> isBusy.set(false));
         Thread thread = new Thread(handler);
         thread.start();
     }
@@ -0,0 +1,14 @@
+package server.replication;
+
+public record ChangeEntry(
+        long seq,
+        String type,
+        String clientId,
+        String filePath,
+        long modificationDate,
+        long committedAt
+) {
+    ChangeEntry withSeq(long seq) {
+        return new ChangeEntry(seq, type, clientId, filePath, modificationDate, committedAt);
+    }
+}
@@ -0,0 +1,309 @@
+package server.replication;
+
+import common.json.JsonUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Change log split into segment files named after the seq of their first entry, so a reader seeks
+// to a seq by opening its segment, and segments every peer has acked are deleted as a whole
+public class ChangeLog implements Runnable {
+    public static final String WRITE = "WRITE";
+    public static final String DELETE = "DELETE";
+
+    // Marks where changes were lost, peers that have not applied it need a snapshot
+    public static final String LOST = "LOST";
+
+    // Only shipped, never logged: the archived files of a snapshot and the seq it continues from
+    public static final String SNAPSHOT = "SNAPSHOT";
+    public static final String SNAPSHOT_DONE = "SNAPSHOT_DONE";
+
+    private static final int MAX_FLUSH_BATCH = 1024;
+    private static final int SEGMENT_ENTRIES = 10_000;
+    private static final int MAX_PENDING = 100_000;
+    private static final long MAX_RETRY_MILLIS = 30_000;
+
+    private final Path directory;
+    private final ConcurrentSkipListMap<Long, Path> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<ChangeEntry> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile IOException failure;
+    private volatile boolean running = true;
+    private volatile long resyncSeq;
+
+    private long persistedSeq;
+    private long written;
+
+    // Only touched by the log thread
+    private BufferedWriter writer;
+    private int segmentEntries;
+
+    public ChangeLog(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.matches("changes-\\d+\\.log")) {
+                    segments.put(Long.parseLong(name.substring("changes-".length(), name.length() - ".log".length())), file);
+                }
+            }
+        }
+
+        if (!segments.isEmpty()) {
+            Map.Entry<Long, Path> last = segments.lastEntry();
+            persistedSeq = last.getKey() - 1;
+            cutTornLine(last.getValue());
+            try (BufferedReader reader = Files.newBufferedReader(last.getValue())) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    ChangeEntry entry = parse(line);
+                    if (entry == null) continue;
+                    persistedSeq = Math.max(persistedSeq, entry.seq());
+                    segmentEntries++;
+                }
+            }
+        }
+
+        // Changes dropped before the last stop are in no segment, a LOST entry takes their place
+        Path lostMarker = directory.resolve("changes-lost");
+        Path resyncFile = directory.resolve("resync-seq");
+        if (Files.exists(lostMarker)) {
+            recorded.incrementAndGet();
+            write(List.of(new ChangeEntry(0, LOST, "", "", 0, System.currentTimeMillis())));
+            Files.writeString(resyncFile, Long.toString(persistedSeq));
+            Files.delete(lostMarker);
+        }
+        if (Files.exists(resyncFile)) resyncSeq = Long.parseLong(Files.readString(resyncFile).trim());
+    }
+
+    // Called from the client session path, so it only enqueues - the log thread assigns seq and writes
+    public void recordWrite(String clientId, String filePath, long modificationDate) {
+        record(new ChangeEntry(0, WRITE, clientId, filePath, modificationDate, System.currentTimeMillis()));
+    }
+
+    public void recordDelete(String clientId, String filePath) {
+        record(new ChangeEntry(0, DELETE, clientId, filePath, 0, System.currentTimeMillis()));
+    }
+
+    public synchronized long persistedSeq() {
+        return persistedSeq;
+    }
+
+    public synchronized void awaitAfter(long seq, long timeoutMillis) throws InterruptedException {
+        if (persistedSeq <= seq) wait(timeoutMillis);
+    }
+
+    // Waits until every recorded change is on disk, e.g. from a shutdown hook
+    public synchronized boolean awaitWritten(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (written < recorded.get()) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    // A peer that has not applied a LOST entry, or that needs changes no longer retained, cannot
+    // catch up from the log and has to get a snapshot of the archive first
+    public boolean needsSnapshot(long appliedSeq) {
+        if (appliedSeq < resyncSeq) return true;
+        return !segments.isEmpty() && appliedSeq + 1 < segments.firstKey();
+    }
+
+    // First seq of the segment holding the given seq, or of the oldest segment when it is no longer retained
+    public Long segmentFor(long seq) {
+        Long segment = segments.floorKey(seq);
+        return segment != null ? segment : segments.isEmpty() ? null : segments.firstKey();
+    }
+
+    public Long segmentAfter(long segment) {
+        return segments.higherKey(segment);
+    }
+
+    public Path segmentPath(long segment) {
+        return segments.get(segment);
+    }
+
+    // Deletes segments holding only entries up to the given seq, the segment being written is always kept
+    public void retainAfter(long ackedSeq) {
+        for (Long segment : segments.keySet()) {
+            Long next = segments.higherKey(segment);
+            if (next == null || next > ackedSeq + 1) break;
+
+            try {
+                Files.deleteIfExists(segments.get(segment));
+                segments.remove(segment);
+            } catch (IOException e) {
+                System.err.println("Could not delete change log segment: " + e.getMessage());
+                return;
+            }
+        }
+    }
+
+    // Null while healthy, otherwise why peers are missing or may miss changes
+    public String problem() {
+        if (!running) return "change log thread stopped, changes are no longer replicated";
+        if (dropped.get() > 0) return dropped.get() + " changes were dropped, peers get a snapshot of the archive after a restart";
+        if (failure != null) return "change log cannot write (" + failure.getMessage() + "), " + pending.size() + " changes queued";
+        return null;
+    }
+
+    @Override
+    public void run() {
+        List<ChangeEntry> batch = new ArrayList<>();
+        long retryMillis = 1000;
+
+        try {
+            while (true) {
+                if (batch.isEmpty()) {
+                    batch.add(pending.take());
+                    pending.drainTo(batch, MAX_FLUSH_BATCH - 1);
+                }
+
+                // A failed batch is kept and written again with the same seqs
+                try {
+                    write(batch);
+                    batch.clear();
+                    failure = null;
+                    retryMillis = 1000;
+                } catch (IOException e) {
+                    if (failure == null) System.err.println("Change log cannot write, retrying: " + e.getMessage());
+                    failure = e;
+                    closeWriter();
+                    Thread.sleep(retryMillis);
+                    retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            running = false;
+            closeWriter();
+            System.err.println("Change log stopped, " + pending.size() + " changes were not written.");
+        }
+    }
+
+    static ChangeEntry parse(String line) {
+        try {
+            return JsonUtils.fromJson(line, ChangeEntry.class);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // A full queue holds the session back instead of losing the change, only a stopped log thread drops it
+    private void record(ChangeEntry entry) {
+        try {
+            while (running) {
+                if (pending.offer(entry, 1, TimeUnit.SECONDS)) {
+                    recorded.incrementAndGet();
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (dropped.getAndIncrement() == 0) {
+            System.err.println("Change log is not accepting changes, peers get a snapshot of the archive after a restart.");
+            try {
+                Files.writeString(directory.resolve("changes-lost"), "");
+            } catch (IOException e) {
+                System.err.println("Could not mark the change log as incomplete, peers have to be resynced by hand: " + e.getMessage());
+            }
+        }
+    }
+
+    private void write(List<ChangeEntry> batch) throws IOException {
+        long seq = persistedSeq();
+        if (writer == null || segmentEntries >= SEGMENT_ENTRIES) openSegment(seq + 1);
+
+        for (ChangeEntry entry : batch) {
+            writer.write(JsonUtils.toJson(entry.withSeq(++seq)));
+            writer.newLine();
+        }
+        writer.flush();
+        segmentEntries += batch.size();
+
+        synchronized (this) {
+            persistedSeq = seq;
+            written += batch.size();
+            notifyAll();
+        }
+    }
+
+    // Keeps appending to the last segment until it is full, also across restarts
+    private void openSegment(long firstSeq) throws IOException {
+        closeWriter();
+
+        if (segments.isEmpty() || segmentEntries >= SEGMENT_ENTRIES) {
+            segments.put(firstSeq, directory.resolve(String.format("changes-%012d.log", firstSeq)));
+            segmentEntries = 0;
+        }
+        writer = Files.newBufferedWriter(segments.lastEntry().getValue(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        // A failed write may have left a torn line, it is ended here and skipped by readers
+        if (failure != null) writer.newLine();
+    }
+
+    private void closeWriter() {
+        if (writer == null) return;
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+            // The entries of a failed batch are written again anyway
+        }
+        writer = null;
+    }
+
+    // A crash can leave the last line torn. It is cut off, otherwise the next entry would be
+    // appended onto it and both would be unreadable
+    private static void cutTornLine(Path segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer chunk = ByteBuffer.allocate(4096);
+            long end = channel.size();
+            long complete = 0;
+
+            search:
+            while (end > 0) {
+                long start = Math.max(0, end - chunk.capacity());
+                chunk.clear().limit((int) (end - start));
+                while (chunk.hasRemaining()) {
+                    if (channel.read(chunk, start + chunk.position()) == -1) break;
+                }
+                for (int i = chunk.position() - 1; i >= 0; i--) {
+                    if (chunk.get(i) == '\n') {
+                        complete = start + i + 1;
+                        break search;
+                    }
+                }
+                end = start;
+            }
+
+            if (complete < channel.size()) {
+                System.err.println("Change log " + segment.getFileName() + " ends with a torn entry, it is dropped.");
+                channel.truncate(complete);
+                channel.force(false);
+            }
+        }
+    }
+}
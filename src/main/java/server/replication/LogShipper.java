@@ -0,0 +1,272 @@
+package server.replication;
+
+import common.model.Manifest;
+import server.storage.ArchiveStorage;
+import server.storage.ClientArchive;
+import server.storage.PackedStore;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class LogShipper implements Runnable {
+    private static final int MAX_BATCH_ENTRIES = 512;
+    private static final long MAX_BATCH_BYTES = 16L * 1024 * 1024;
+    private static final long MAX_BACKOFF_MILLIS = 30_000;
+
+    private final InetSocketAddress peer;
+    private final ChangeLog changeLog;
+    private final ArchiveStorage storage;
+    private final String sourceId;
+    private final ReplicationMetrics metrics;
+    private final byte[] buffer = new byte[64 * 1024];
+
+    public LogShipper(InetSocketAddress peer, ChangeLog changeLog, ArchiveStorage storage, String sourceId) {
+        this.peer = peer;
+        this.changeLog = changeLog;
+        this.storage = storage;
+        this.sourceId = sourceId;
+        this.metrics = new ReplicationMetrics(changeLog::persistedSeq);
+    }
+
+    public InetSocketAddress getPeer() {
+        return peer;
+    }
+
+    public ReplicationMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void run() {
+        long backoff = 1000;
+
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(peer, 5000);
+                System.out.println("Replication connected to peer: " + peer);
+                backoff = 1000;
+                metrics.recordConnected(true);
+                ship(socket);
+            } catch (IOException e) {
+                System.err.println("Replication to " + peer + " interrupted: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                metrics.recordConnected(false);
+            }
+
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    private void ship(Socket socket) throws IOException, InterruptedException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+        // Peer answers with the last seq it applied from us, shipping resumes right after it
+        out.writeUTF(sourceId);
+        out.flush();
+        long shipped = in.readLong();
+        metrics.recordAck(shipped, metrics.getLagMillis());
+        if (changeLog.needsSnapshot(shipped)) shipped = sendSnapshot(shipped, out, in);
+
+        List<ChangeEntry> batch = new ArrayList<>();
+        Long segment = null;
+        BufferedReader log = null;
+        try {
+            while (true) {
+                long persisted = changeLog.persistedSeq();
+                if (persisted <= shipped) {
+                    changeLog.awaitAfter(shipped, 1000);
+                    continue;
+                }
+
+                // Resuming seeks to the segment of the next seq instead of reading the whole history
+                if (log == null) {
+                    segment = changeLog.segmentFor(shipped + 1);
+                    if (segment == null) throw new IOException("Change log has no segments");
+                    if (segment > shipped + 1) {
+                        throw new IOException("peer needs changes after seq " + shipped + " that are no longer retained");
+                    }
+                    log = Files.newBufferedReader(changeLog.segmentPath(segment));
+                }
+
+                long batchBytes = 0;
+                boolean endOfSegment = false;
+                // Only lines up to the persisted seq are read, those are guaranteed to be complete
+                while (shipped < persisted && batch.size() < MAX_BATCH_ENTRIES && batchBytes < MAX_BATCH_BYTES) {
+                    String line = log.readLine();
+                    if (line == null) {
+                        endOfSegment = true;
+                        break;
+                    }
+
+                    ChangeEntry entry = ChangeLog.parse(line);
+                    if (entry == null || entry.seq() <= shipped) continue;
+
+                    batch.add(entry);
+                    shipped = entry.seq();
+                    if (ChangeLog.WRITE.equals(entry.type())) batchBytes += sizeOf(entry);
+                }
+
+                if (!batch.isEmpty()) {
+                    sendBatch(batch, out, in);
+                    batch.clear();
+                }
+
+                // The rest of the persisted entries is in the next segment
+                if (endOfSegment && shipped < persisted) {
+                    if (changeLog.segmentAfter(segment) != null) {
+                        log.close();
+                        log = null;
+                    } else {
+                        Thread.sleep(100);
+                    }
+                }
+            }
+        } finally {
+            if (log != null) log.close();
+        }
+    }
+
+    private void sendBatch(List<ChangeEntry> batch, DataOutputStream out, DataInputStream in) throws IOException {
+        out.writeInt(batch.size());
+
+        SegmentOutputStream segmentOut = new SegmentOutputStream(out);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        long fileBytes = 0;
+        try {
+            DataOutputStream segment = new DataOutputStream(new DeflaterOutputStream(segmentOut, deflater, buffer.length));
+            for (ChangeEntry entry : batch) {
+                segment.writeLong(entry.seq());
+                segment.writeLong(entry.committedAt());
+                segment.writeUTF(entry.type());
+                segment.writeUTF(entry.clientId());
+                segment.writeUTF(entry.filePath());
+                if (carriesFile(entry)) fileBytes += writeFileData(segment, entry);
+            }
+            segment.close();
+        } finally {
+            deflater.end();
+        }
+
+        long appliedSeq = in.readLong();
+        long lagMillis = in.readLong();
+
+        metrics.recordBatch(batch.size(), fileBytes, segmentOut.getWritten());
+        metrics.recordAck(appliedSeq, lagMillis);
+    }
+
+    // A peer the log cannot bring up to date gets every archived file first. Its applied seq only
+    // moves with the final SNAPSHOT_DONE entry, so an interrupted snapshot starts over on reconnect,
+    // and the log is shipped from the seq the snapshot started at. Files the peer holds that are not
+    // in the snapshot are left alone
+    private long sendSnapshot(long appliedSeq, DataOutputStream out, DataInputStream in) throws IOException {
+        long startSeq = changeLog.persistedSeq();
+        System.out.println("Peer " + peer + " applied changes up to seq " + appliedSeq
+                + ", which the change log cannot continue from. Sending a snapshot of the archive at seq " + startSeq + ".");
+        metrics.recordSnapshot(true);
+
+        try {
+            List<ChangeEntry> batch = new ArrayList<>();
+            long batchBytes = 0;
+            long files = 0;
+            for (String clientId : storage.clientIds()) {
+                Manifest archived;
+                ClientArchive archive = storage.forClient(clientId);
+                try {
+                    archived = archive.walk();
+                } finally {
+                    archive.close();
+                }
+
+                for (int entry = 0; entry < archived.size(); entry++) {
+                    if (archived.isDirectory(entry)) continue;
+
+                    batch.add(new ChangeEntry(0, ChangeLog.SNAPSHOT, clientId, archived.path(entry),
+                            archived.modificationDate(entry), System.currentTimeMillis()));
+                    batchBytes += archived.fileSize(entry);
+                    if (batch.size() >= MAX_BATCH_ENTRIES || batchBytes >= MAX_BATCH_BYTES) {
+                        sendBatch(batch, out, in);
+                        files += batch.size();
+                        batch.clear();
+                        batchBytes = 0;
+                    }
+                }
+            }
+            files += batch.size();
+
+            batch.add(new ChangeEntry(startSeq, ChangeLog.SNAPSHOT_DONE, "", "", 0, System.currentTimeMillis()));
+            sendBatch(batch, out, in);
+            System.out.println("Snapshot of " + files + " files sent to peer " + peer + ", shipping changes after seq " + startSeq + ".");
+            return startSeq;
+        } finally {
+            metrics.recordSnapshot(false);
+        }
+    }
+
+    private boolean carriesFile(ChangeEntry entry) {
+        return ChangeLog.WRITE.equals(entry.type()) || ChangeLog.SNAPSHOT.equals(entry.type());
+    }
+
+    // The archive may have changed since the entry was logged - the current content is shipped,
+    // and a missing file is marked as such, since a later DELETE entry supersedes it anyway
+    private long writeFileData(DataOutputStream segment, ChangeEntry entry) throws IOException {
+        PackedStore.Content packed = storage.readPacked(entry.clientId(), entry.filePath());
+        if (packed != null) {
+            segment.writeBoolean(true);
+            segment.writeLong(packed.data().length);
+            segment.writeLong(packed.modificationDate());
+            segment.write(packed.data());
+            return packed.data().length;
+        }
+
+        Path file = storage.getArchivePath().resolve(entry.clientId()).resolve(entry.filePath());
+        if (!Files.isRegularFile(file)) {
+            segment.writeBoolean(false);
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long length = channel.size();
+            segment.writeBoolean(true);
+            segment.writeLong(length);
+            segment.writeLong(Files.getLastModifiedTime(file).toMillis());
+
+            InputStream fileIn = Channels.newInputStream(channel);
+            long remaining = length;
+            while (remaining > 0) {
+                int count = fileIn.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (count == -1) throw new IOException("File changed while shipping: " + file);
+                segment.write(buffer, 0, count);
+                remaining -= count;
+            }
+            return length;
+        }
+    }
+
+    private long sizeOf(ChangeEntry entry) {
+        try {
+            return Files.size(storage.getArchivePath().resolve(entry.clientId()).resolve(entry.filePath()));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
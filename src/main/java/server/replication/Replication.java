@@ -0,0 +1,106 @@
+package server.replication;
+
+import server.storage.ArchiveStorage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class Replication {
+    private static final long STATUS_INTERVAL_MILLIS = 30_000;
+
+    private final int receiverPort;
+    private final List<InetSocketAddress> peers;
+    private final List<LogShipper> shippers = new CopyOnWriteArrayList<>();
+    private ChangeLog changeLog;
+
+    public Replication(int receiverPort, List<InetSocketAddress> peers) {
+        this.receiverPort = receiverPort;
+        this.peers = peers;
+    }
+
+    // Returns the change log client sessions should record into, or null when there are no peers to ship to
+    public ChangeLog start(ArchiveStorage storage, Path stateDirectory) throws IOException {
+        Files.createDirectories(stateDirectory);
+
+        if (receiverPort > 0) {
+            startDaemon(new ReplicationReceiver(receiverPort, storage.getArchivePath(), storage.getStagingPath(), stateDirectory), "replication-receiver");
+        }
+        if (peers.isEmpty()) return null;
+
+        changeLog = new ChangeLog(stateDirectory.resolve("changes"));
+        startDaemon(changeLog, "replication-log");
+
+        // Changes still queued when the server stops would otherwise never reach the peers
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (!changeLog.awaitWritten(5000)) System.err.println("Change log could not write all changes before exit.");
+            } catch (InterruptedException ignored) {
+            }
+        }));
+
+        String sourceId = readServerId(stateDirectory.resolve("server-id"));
+        for (InetSocketAddress peer : peers) {
+            LogShipper shipper = new LogShipper(peer, changeLog, storage, sourceId);
+            shippers.add(shipper);
+            startDaemon(shipper, "replication-" + peer);
+        }
+        startDaemon(this::reportStatus, "replication-status");
+        return changeLog;
+    }
+
+    public Map<InetSocketAddress, ReplicationMetrics> getMetrics() {
+        Map<InetSocketAddress, ReplicationMetrics> metrics = new LinkedHashMap<>();
+        for (LogShipper shipper : shippers) metrics.put(shipper.getPeer(), shipper.getMetrics());
+        return metrics;
+    }
+
+    // Summary of every peer that shipped something, is behind or is unreachable since the last one.
+    // Segments every peer has acked are dropped on the way
+    private void reportStatus() {
+        Map<InetSocketAddress, Long> reportedEntries = new HashMap<>();
+        while (true) {
+            try {
+                Thread.sleep(STATUS_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            String problem = changeLog.problem();
+            if (problem != null) System.err.println("Replication: " + problem);
+
+            long ackedByAll = Long.MAX_VALUE;
+            for (Map.Entry<InetSocketAddress, ReplicationMetrics> peerMetrics : getMetrics().entrySet()) {
+                ReplicationMetrics metrics = peerMetrics.getValue();
+                ackedByAll = Math.min(ackedByAll, metrics.getAckedSeq());
+
+                Long previous = reportedEntries.put(peerMetrics.getKey(), metrics.getEntries());
+                if (previous == null || previous != metrics.getEntries() || metrics.getPendingEntries() > 0 || !metrics.isConnected()) {
+                    System.out.println("Replication to " + peerMetrics.getKey() + ": " + metrics);
+                }
+            }
+            changeLog.retainAfter(ackedByAll);
+        }
+    }
+
+    private void startDaemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private String readServerId(Path idFile) throws IOException {
+        if (Files.exists(idFile)) return Files.readString(idFile).trim();
+
+        String id = UUID.randomUUID().toString();
+        Files.writeString(idFile, id);
+        return id;
+    }
+}
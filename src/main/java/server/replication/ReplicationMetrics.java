@@ -0,0 +1,111 @@
+package server.replication;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+public class ReplicationMetrics {
+    private static final int WINDOW_SECONDS = 60;
+
+    private final LongSupplier headSeq;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong fileBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private volatile boolean connected;
+    private volatile boolean sendingSnapshot;
+    private volatile long ackedSeq;
+    private volatile long lagMillis;
+
+    // File bytes shipped per second over the last minute, as a ring indexed by epoch second
+    private final long[] windowBytes = new long[WINDOW_SECONDS];
+    private final long[] windowSeconds = new long[WINDOW_SECONDS];
+
+    ReplicationMetrics(LongSupplier headSeq) {
+        this.headSeq = headSeq;
+    }
+
+    void recordConnected(boolean connected) {
+        this.connected = connected;
+    }
+
+    void recordSnapshot(boolean sending) {
+        this.sendingSnapshot = sending;
+    }
+
+    void recordBatch(int entryCount, long fileByteCount, long wireByteCount) {
+        batches.incrementAndGet();
+        entries.addAndGet(entryCount);
+        fileBytes.addAndGet(fileByteCount);
+        wireBytes.addAndGet(wireByteCount);
+
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % WINDOW_SECONDS);
+        synchronized (windowBytes) {
+            if (windowSeconds[slot] != second) {
+                windowSeconds[slot] = second;
+                windowBytes[slot] = 0;
+            }
+            windowBytes[slot] += fileByteCount;
+        }
+    }
+
+    void recordAck(long ackedSeq, long lagMillis) {
+        this.ackedSeq = ackedSeq;
+        this.lagMillis = lagMillis;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public boolean isSendingSnapshot() {
+        return sendingSnapshot;
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public long getEntries() {
+        return entries.get();
+    }
+
+    public long getFileBytes() {
+        return fileBytes.get();
+    }
+
+    public long getWireBytes() {
+        return wireBytes.get();
+    }
+
+    public long getAckedSeq() {
+        return ackedSeq;
+    }
+
+    // Taken from the log head on every call, so it keeps growing while the peer is down
+    public long getPendingEntries() {
+        return Math.max(0, headSeq.getAsLong() - ackedSeq);
+    }
+
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    public double getThroughputBytesPerSecond() {
+        long second = System.currentTimeMillis() / 1000;
+        long bytes = 0;
+        synchronized (windowBytes) {
+            for (int slot = 0; slot < WINDOW_SECONDS; slot++) {
+                if (second - windowSeconds[slot] < WINDOW_SECONDS) bytes += windowBytes[slot];
+            }
+        }
+        return (double) bytes / WINDOW_SECONDS;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s, acked seq %d, %d pending, lag %d ms, %d changes in %d batches, %.1f KB/s over the last minute (%d KB on wire)",
+                !connected ? "disconnected" : sendingSnapshot ? "sending snapshot" : "connected", ackedSeq, getPendingEntries(), lagMillis, entries.get(),
+                batches.get(), getThroughputBytesPerSecond() / 1024, wireBytes.get() / 1024);
+    }
+}
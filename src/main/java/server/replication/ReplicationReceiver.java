@@ -0,0 +1,166 @@
+package server.replication;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+public class ReplicationReceiver implements Runnable {
+    private final int port;
+    private final Path archivePath;
+    private final Path stagingPath;
+    private final Path stateDirectory;
+
+    public ReplicationReceiver(int port, Path archivePath, Path stagingPath, Path stateDirectory) {
+        this.port = port;
+        this.archivePath = archivePath;
+        this.stagingPath = stagingPath;
+        this.stateDirectory = stateDirectory;
+    }
+
+    @Override
+    public void run() {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            System.out.println("Replication receiver started on port: " + port);
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> serve(socket));
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            System.out.println("Encountered problem when opening replication socket on port: " + port);
+            System.err.println(e.getMessage());
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))
+        ) {
+            String sourceId = in.readUTF();
+            Path stateFile = stateDirectory.resolve("applied-" + sourceId.replaceAll("[^A-Za-z0-9-]", "_"));
+            long appliedSeq = readAppliedSeq(stateFile);
+
+            System.out.println("Replication source connected: " + sourceId + " (applied up to " + appliedSeq + ")");
+            out.writeLong(appliedSeq);
+            out.flush();
+
+            byte[] buffer = new byte[64 * 1024];
+            while (true) {
+                int count;
+                try {
+                    count = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                long lagMillis = 0;
+                SegmentInputStream segmentIn = new SegmentInputStream(in);
+                Inflater inflater = new Inflater();
+                try {
+                    DataInputStream segment = new DataInputStream(
+                            new BufferedInputStream(new InflaterInputStream(segmentIn, inflater, buffer.length)));
+
+                    for (int i = 0; i < count; i++) {
+                        long seq = segment.readLong();
+                        long committedAt = segment.readLong();
+                        String type = segment.readUTF();
+                        String clientId = segment.readUTF();
+                        String filePath = segment.readUTF();
+                        boolean apply = seq > appliedSeq;
+
+                        // Entries at or below the applied seq are re-sent after a reconnect, their data is skipped.
+                        // Snapshot files come without a seq and are always written
+                        if (ChangeLog.WRITE.equals(type)) {
+                            applyWrite(segment, clientId, filePath, apply, buffer);
+                        } else if (ChangeLog.SNAPSHOT.equals(type)) {
+                            applyWrite(segment, clientId, filePath, true, buffer);
+                        } else if (ChangeLog.DELETE.equals(type) && apply) {
+                            applyDelete(clientId, filePath);
+                        } else if (ChangeLog.SNAPSHOT_DONE.equals(type)) {
+                            System.out.println("Snapshot from " + sourceId + " applied, continuing after seq " + seq + ".");
+                        }
+
+                        appliedSeq = Math.max(appliedSeq, seq);
+                        lagMillis = System.currentTimeMillis() - committedAt;
+                    }
+                    segmentIn.skipToEnd();
+                } finally {
+                    inflater.end();
+                }
+
+                Files.writeString(stateFile, Long.toString(appliedSeq));
+                out.writeLong(appliedSeq);
+                out.writeLong(lagMillis);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println("Replication session ended: " + e.getMessage());
+        }
+    }
+
+    private void applyWrite(DataInputStream segment, String clientId, String filePath, boolean apply, byte[] buffer) throws IOException {
+        if (!segment.readBoolean()) return;
+        long length = segment.readLong();
+        long lastModified = segment.readLong();
+
+        if (!apply) {
+            segment.skipNBytes(length);
+            return;
+        }
+
+        Path target = resolve(clientId, filePath);
+        Files.createDirectories(target.getParent());
+        Path temp = stagingPath.resolve("replica-" + UUID.randomUUID() + ".part");
+
+        try {
+            try (OutputStream fileOut = Files.newOutputStream(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                long remaining = length;
+                while (remaining > 0) {
+                    int count = segment.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (count == -1) throw new EOFException("Log segment ended inside file data: " + filePath);
+                    fileOut.write(buffer, 0, count);
+                    remaining -= count;
+                }
+            }
+
+            Files.setLastModifiedTime(temp, FileTime.fromMillis(lastModified));
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void applyDelete(String clientId, String filePath) throws IOException {
+        Path target = resolve(clientId, filePath);
+        try {
+            Files.deleteIfExists(target);
+        } catch (DirectoryNotEmptyException ignored) {
+            // Directory still holds files replicated after the delete was logged
+        }
+    }
+
+    private Path resolve(String clientId, String filePath) throws IOException {
+        Path target = archivePath.resolve(clientId).resolve(filePath).normalize();
+        if (!target.startsWith(archivePath.resolve(clientId))) {
+            throw new IOException("Rejected path outside of archive: " + filePath);
+        }
+        return target;
+    }
+
+    private long readAppliedSeq(Path stateFile) throws IOException {
+        if (!Files.exists(stateFile)) return 0;
+        try {
+            return Long.parseLong(Files.readString(stateFile).trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
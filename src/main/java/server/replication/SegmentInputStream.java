@@ -0,0 +1,56 @@
+package server.replication;
+
+import java.io.DataInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+
+class SegmentInputStream extends FilterInputStream {
+    private final DataInputStream dataIn;
+    private int remaining;
+    private boolean finished;
+
+    SegmentInputStream(DataInputStream in) {
+        super(in);
+        this.dataIn = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (!nextChunk()) return -1;
+        int count = dataIn.read(b, off, Math.min(len, remaining));
+        if (count == -1) throw new IOException("Connection closed inside log segment");
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return finished ? 0 : remaining;
+    }
+
+    // Consumes whatever the reader left behind, up to the segment terminator
+    void skipToEnd() throws IOException {
+        while (nextChunk()) {
+            dataIn.skipNBytes(remaining);
+            remaining = 0;
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private boolean nextChunk() throws IOException {
+        while (!finished && remaining == 0) {
+            remaining = dataIn.readInt();
+            if (remaining == 0) finished = true;
+        }
+        return !finished;
+    }
+}
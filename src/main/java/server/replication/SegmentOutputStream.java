@@ -0,0 +1,41 @@
+package server.replication;
+
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+
+// Frames a compressed log segment as (length, bytes) chunks ended by a zero length,
+// so the peer knows where a segment stops without closing the connection
+class SegmentOutputStream extends FilterOutputStream {
+    private final DataOutputStream dataOut;
+    private long written;
+
+    SegmentOutputStream(DataOutputStream out) {
+        super(out);
+        this.dataOut = out;
+    }
+
+    long getWritten() {
+        return written;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return;
+        dataOut.writeInt(len);
+        dataOut.write(b, off, len);
+        written += len + Integer.BYTES;
+    }
+
+    @Override
+    public void close() throws IOException {
+        dataOut.writeInt(0);
+        dataOut.flush();
+        written += Integer.BYTES;
+    }
+}
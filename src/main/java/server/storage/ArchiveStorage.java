@@ -0,0 +1,170 @@
+package server.storage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The archive of all Clients: files above the threshold are kept loose under archive/<clientId>,
+// smaller ones go into the segments of packed/<clientId> when packing is enabled
+public class ArchiveStorage {
+    private static final int MAX_OPEN_STORES = 256;
+    private static final long IDLE_MILLIS = 5 * 60 * 1000;
+
+    private final Path archivePath;
+    private final Path packedRoot;
+    private final Path stagingPath;
+    private final int smallFileThreshold;
+
+    // Stores of recently active Clients. One in use is never closed, an idle one is closed after a
+    // while or when too many are open, and is opened again from its index log when needed
+    private final Map<String, OpenStore> openStores = new HashMap<>();
+
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "packed-maintenance");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public ArchiveStorage(Path archivePath, int smallFileThreshold) throws IOException {
+        this.archivePath = archivePath;
+        this.packedRoot = smallFileThreshold > 0 ? archivePath.resolveSibling("packed") : null;
+        this.stagingPath = archivePath.resolveSibling("staging");
+        this.smallFileThreshold = smallFileThreshold;
+        clearStaging();
+        if (packedRoot != null) maintenance.scheduleWithFixedDelay(this::closeIdleStores, 1, 1, TimeUnit.MINUTES);
+    }
+
+    public Path getArchivePath() {
+        return archivePath;
+    }
+
+    // Incoming files are written here and moved into the archive once complete. It is outside of
+    // every Client directory, so a staged file never shares a name with an archived one
+    public Path getStagingPath() {
+        return stagingPath;
+    }
+
+    // The returned archive has to be closed, which lets its packed store be closed once idle
+    public ClientArchive forClient(String clientId) throws IOException {
+        PackedStore packed = packedRoot == null ? null : acquire(clientId);
+        return new ClientArchive(this, clientId, archivePath.resolve(clientId), packed, smallFileThreshold);
+    }
+
+    // Clients with a loose or a packed archive
+    public List<String> clientIds() throws IOException {
+        TreeSet<String> clientIds = new TreeSet<>();
+        for (Path root : packedRoot == null ? List.of(archivePath) : List.of(archivePath, packedRoot)) {
+            if (!Files.isDirectory(root)) continue;
+            try (Stream<Path> clients = Files.list(root)) {
+                clients.filter(Files::isDirectory).forEach(client -> clientIds.add(client.getFileName().toString()));
+            }
+        }
+        return List.copyOf(clientIds);
+    }
+
+    // Current content of a packed file, or null when the file is kept loose or does not exist
+    public PackedStore.Content readPacked(String clientId, String filePath) throws IOException {
+        if (packedRoot == null || !Files.isDirectory(packedRoot.resolve(clientId))) return null;
+
+        PackedStore packed = acquire(clientId);
+        try {
+            return packed.read(filePath);
+        } finally {
+            release(clientId);
+        }
+    }
+
+    void compactLater(String clientId) {
+        maintenance.submit(() -> {
+            try {
+                PackedStore packed = acquire(clientId);
+                try {
+                    packed.compactIfNeeded();
+                } finally {
+                    release(clientId);
+                }
+            } catch (IOException e) {
+                System.err.println("Compaction failed: " + e.getMessage());
+            }
+        });
+    }
+
+    synchronized void release(String clientId) {
+        OpenStore open = openStores.get(clientId);
+        open.users--;
+        open.lastUsed = System.currentTimeMillis();
+
+        if (openStores.size() > MAX_OPEN_STORES) closeLeastRecentlyUsed();
+    }
+
+    private synchronized PackedStore acquire(String clientId) throws IOException {
+        OpenStore open = openStores.get(clientId);
+        if (open == null) {
+            open = new OpenStore(PackedStore.open(packedRoot.resolve(clientId)));
+            openStores.put(clientId, open);
+        }
+        open.users++;
+        return open.store;
+    }
+
+    private synchronized void closeIdleStores() {
+        long idleSince = System.currentTimeMillis() - IDLE_MILLIS;
+        Iterator<OpenStore> stores = openStores.values().iterator();
+        while (stores.hasNext()) {
+            OpenStore open = stores.next();
+            if (open.users == 0 && open.lastUsed < idleSince) {
+                close(open);
+                stores.remove();
+            }
+        }
+    }
+
+    private void closeLeastRecentlyUsed() {
+        List<Map.Entry<String, OpenStore>> idle = openStores.entrySet().stream()
+                .filter(open -> open.getValue().users == 0)
+                .sorted(Comparator.comparingLong(open -> open.getValue().lastUsed))
+                .toList();
+
+        for (Map.Entry<String, OpenStore> open : idle) {
+            if (openStores.size() <= MAX_OPEN_STORES) break;
+            close(open.getValue());
+            openStores.remove(open.getKey());
+        }
+    }
+
+    private void close(OpenStore open) {
+        try {
+            open.store.close();
+        } catch (IOException e) {
+            System.err.println("Could not close packed store: " + e.getMessage());
+        }
+    }
+
+    // Files left over by uploads a crash interrupted
+    private void clearStaging() throws IOException {
+        Files.createDirectories(stagingPath);
+        try (Stream<Path> files = Files.list(stagingPath)) {
+            for (Path file : (Iterable<Path>) files::iterator) Files.deleteIfExists(file);
+        }
+    }
+
+    private static class OpenStore {
+        private final PackedStore store;
+        private int users;
+        private long lastUsed;
+
+        OpenStore(PackedStore store) {
+            this.store = store;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package server.storage;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+// Fixed set of direct buffers shared by all receiving sessions. When every buffer is queued for
+// writing, acquire() blocks, so socket readers stop reading and TCP flow control slows the Client
+public class BufferPool {
+    private final BlockingQueue<ByteBuffer> free;
+    private final int bufferSize;
+
+    public BufferPool(int buffers, int bufferSize) {
+        this.free = new ArrayBlockingQueue<>(buffers);
+        this.bufferSize = bufferSize;
+        for (int i = 0; i < buffers; i++) free.add(ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public ByteBuffer acquire() throws InterruptedException {
+        ByteBuffer buffer = free.take();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+}
@@ -0,0 +1,113 @@
+package server.storage;
+
+import common.model.Manifest;
+import common.utils.FileWorker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+
+// Archived files of one Client. A path lives either packed or loose, every operation tries the
+// packed store first and falls back to the loose file
+public class ClientArchive {
+    private final ArchiveStorage storage;
+    private final String clientId;
+    private final Path directory;
+    private final PackedStore packed;
+    private final int smallFileThreshold;
+
+    ClientArchive(ArchiveStorage storage, String clientId, Path directory, PackedStore packed, int smallFileThreshold) {
+        this.storage = storage;
+        this.clientId = clientId;
+        this.directory = directory;
+        this.packed = packed;
+        this.smallFileThreshold = smallFileThreshold;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    // Loose files from disk plus the packed ones, which already come with their content hashes
+    public Manifest walk() throws IOException {
+        Manifest files = Files.isDirectory(directory) ? new FileWorker(directory).walkFolder() : new Manifest();
+        if (packed != null) packed.addTo(files);
+        return files;
+    }
+
+    public boolean packs(long length) {
+        return packed != null && length <= smallFileThreshold;
+    }
+
+    public void writePacked(String filePath, ByteBuffer content, long modificationDate) throws IOException {
+        packed.put(filePath, content, modificationDate);
+        Files.deleteIfExists(directory.resolve(filePath));
+    }
+
+    // A loose write replaces a packed copy of the same path
+    public void forgetPacked(String filePath) throws IOException {
+        if (packed != null) packed.delete(filePath);
+    }
+
+    public void setLastModified(String filePath, long modificationDate) throws IOException {
+        if (packed != null && packed.setLastModified(filePath, modificationDate)) return;
+        Files.setLastModifiedTime(directory.resolve(filePath), FileTime.fromMillis(modificationDate));
+    }
+
+    public void move(String from, String to, long modificationDate) throws IOException {
+        relocate(from, to, true, modificationDate);
+    }
+
+    public void copy(String from, String to, long modificationDate) throws IOException {
+        relocate(from, to, false, modificationDate);
+    }
+
+    public void delete(String filePath) throws IOException {
+        if (packed != null && packed.delete(filePath)) return;
+        Files.deleteIfExists(directory.resolve(filePath));
+    }
+
+    public PackedStore.Content readPacked(String filePath) throws IOException {
+        return packed == null ? null : packed.read(filePath);
+    }
+
+    // Space left by deleted and replaced packed files is reclaimed in the background
+    public void compactLater() {
+        if (packed != null) storage.compactLater(clientId);
+    }
+
+    // Packed files of the session are made durable, and the packed store may be closed once no
+    // archive of the Client is open anymore
+    public void close() {
+        if (packed == null) return;
+        try {
+            packed.commit();
+        } catch (IOException e) {
+            System.err.println("Could not commit packed files of " + clientId + ": " + e.getMessage());
+        }
+        storage.release(clientId);
+    }
+
+    private void relocate(String from, String to, boolean move, long modificationDate) throws IOException {
+        Path target = directory.resolve(to);
+
+        // Packed content stays packed, the target path just points at the same bytes
+        if (packed != null && packed.contains(from)) {
+            if (move) packed.rename(from, to);
+            else packed.copy(from, to);
+            packed.setLastModified(to, modificationDate);
+            Files.deleteIfExists(target);
+            return;
+        }
+
+        Path source = directory.resolve(from);
+        Files.createDirectories(target.getParent());
+        if (move) Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        else Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        Files.setLastModifiedTime(target, FileTime.fromMillis(modificationDate));
+        forgetPacked(to);
+    }
+}
@@ -0,0 +1,187 @@
+package server.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+// Takes file writes off the socket reading threads. Every file goes to the lane of its directory,
+// so a directory is created and filled by one thread in order, and each lane queue is bounded
+public class DiskWriterPool {
+    private final BufferPool bufferPool;
+    private final Lane[] lanes;
+
+    public DiskWriterPool(int lanes, int queueCapacity, BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane(queueCapacity);
+            Thread thread = new Thread(this.lanes[i], "disk-writer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public PendingFile open(Path target, Path stagingDirectory, long lastModified) throws InterruptedException {
+        Lane lane = laneOf(target.getParent());
+        PendingFile file = new PendingFile(lane, target, stagingDirectory, lastModified);
+        lane.submit(file::openChannel);
+        return file;
+    }
+
+    // Runs a whole write as one task on the lane of the directory, in order with files opened there
+    public CompletableFuture<Long> submit(Path directory, Callable<Long> task) throws InterruptedException {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        laneOf(directory).submit(() -> {
+            try {
+                done.complete(task.call());
+            } catch (Exception e) {
+                done.completeExceptionally(e);
+            }
+        });
+        return done;
+    }
+
+    private Lane laneOf(Path directory) {
+        return lanes[Math.floorMod(directory.hashCode(), lanes.length)];
+    }
+
+    // A file is written to a staging file of its own and moved over its target once complete,
+    // so an aborted upload never leaves a truncated file in the archive
+    public class PendingFile {
+        private final Lane lane;
+        private final Path target;
+        private final Path stagingDirectory;
+        private final long lastModified;
+        private final CompletableFuture<Long> done = new CompletableFuture<>();
+
+        // Only touched by the lane thread
+        private Path partial;
+        private FileChannel channel;
+        private long written;
+        private IOException failure;
+
+        private PendingFile(Lane lane, Path target, Path stagingDirectory, long lastModified) {
+            this.lane = lane;
+            this.target = target;
+            this.stagingDirectory = stagingDirectory;
+            this.lastModified = lastModified;
+        }
+
+        // Takes over a flipped buffer from the pool, it goes back to the pool once written
+        public void write(ByteBuffer buffer) throws InterruptedException {
+            lane.submit(() -> writeBuffer(buffer));
+        }
+
+        // Completes with the number of bytes written, after the file is closed and its date is set
+        public CompletableFuture<Long> finish() throws InterruptedException {
+            lane.submit(this::closeChannel);
+            return done;
+        }
+
+        // Drops what was written so far, the target keeps its previous content
+        public CompletableFuture<Long> abort(IOException cause) {
+            lane.submitUninterruptibly(() -> discard(cause));
+            return done;
+        }
+
+        private void openChannel() {
+            try {
+                Files.createDirectories(target.getParent());
+                partial = stagingDirectory.resolve("upload-" + UUID.randomUUID() + ".part");
+                channel = FileChannel.open(partial, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        private void writeBuffer(ByteBuffer buffer) {
+            try {
+                if (failure == null) {
+                    while (buffer.hasRemaining()) written += channel.write(buffer);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                if (channel != null) channel.close();
+                if (failure == null) {
+                    Files.setLastModifiedTime(partial, FileTime.fromMillis(lastModified));
+                    Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+
+            if (failure == null) done.complete(written);
+            else discard(failure);
+        }
+
+        private void discard(IOException cause) {
+            try {
+                if (channel != null) channel.close();
+                if (partial != null) Files.deleteIfExists(partial);
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+            done.completeExceptionally(cause);
+        }
+    }
+
+    private static class Lane implements Runnable {
+        private final BlockingQueue<Runnable> tasks;
+
+        Lane(int capacity) {
+            this.tasks = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void submit(Runnable task) throws InterruptedException {
+            tasks.put(task);
+        }
+
+        // Clean-up has to reach the lane even when the submitting thread is being interrupted
+        void submitUninterruptibly(Runnable task) {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    tasks.put(task);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    tasks.take().run();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (RuntimeException e) {
+                    System.err.println("Disk writer task failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
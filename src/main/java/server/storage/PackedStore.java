@@ -0,0 +1,475 @@
+package server.storage;
+
+import common.model.Manifest;
+import common.utils.FileHasher;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+// Small files of one Client appended into large segment files. The index maps every path to
+// (segment, offset, length, mtime) and is kept as an append-only log replayed on open
+public class PackedStore {
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final long MIN_COMPACT_BYTES = 16L * 1024 * 1024;
+    private static final int GROUP_COMMIT_FILES = 256;
+    private static final long COMPACT_BATCH_BYTES = 1024 * 1024;
+    private static final int NO_SEGMENT = -1;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final Path directory;
+    private final Map<Integer, FileChannel> segmentChannels = new HashMap<>();
+
+    // Every segment file on disk, also those not opened since the store was loaded
+    private final TreeSet<Integer> segmentFiles = new TreeSet<>();
+
+    // Paths, mtimes, sizes and content hashes; segment and offset columns are kept alongside
+    private Manifest index;
+    private int[] segments;
+    private long[] offsets;
+
+    private DataOutputStream indexLog;
+    private int currentSegment;
+    private long totalBytes;
+
+    // Index records wait here until the segments they point into are forced, which is done once
+    // for a group of files instead of once per file
+    private final ByteArrayOutputStream pendingRecords = new ByteArrayOutputStream();
+    private final DataOutputStream pendingLog = new DataOutputStream(pendingRecords);
+    private final Set<Integer> dirtySegments = new HashSet<>();
+    private int uncommittedFiles;
+
+    private PackedStore(Path directory) {
+        this.directory = directory;
+    }
+
+    public static PackedStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        PackedStore store = new PackedStore(directory);
+        store.load();
+        return store;
+    }
+
+    public record Content(byte[] data, long modificationDate) {
+    }
+
+    public synchronized boolean contains(String path) {
+        return live(index.find(path));
+    }
+
+    public synchronized void put(String path, ByteBuffer content, long modificationDate) throws IOException {
+        int length = content.remaining();
+        FileChannel segment = segmentFor(length);
+        long offset = segment.size();
+
+        ByteBuffer data = content.duplicate();
+        while (data.hasRemaining()) segment.write(data, offset + (length - data.remaining()));
+        totalBytes += length;
+        dirtySegments.add(currentSegment);
+
+        int entry = entryFor(path);
+        FileHasher.hashContent(content, index, entry);
+        place(entry, currentSegment, offset, length, modificationDate);
+        logPut(path, entry);
+        if (++uncommittedFiles >= GROUP_COMMIT_FILES) commit();
+    }
+
+    // Forces the written content, then appends the index records pointing at it, so the index
+    // never points at content that could still be lost in a crash
+    public synchronized void commit() throws IOException {
+        if (pendingRecords.size() == 0) return;
+
+        for (int segment : dirtySegments) segmentChannel(segment).force(false);
+        dirtySegments.clear();
+
+        pendingRecords.writeTo(indexLog);
+        indexLog.flush();
+        pendingRecords.reset();
+        uncommittedFiles = 0;
+    }
+
+    public synchronized Content read(String path) throws IOException {
+        int entry = index.find(path);
+        if (!live(entry)) return null;
+
+        byte[] data = new byte[(int) index.fileSize(entry)];
+        readFully(segments[entry], offsets[entry], ByteBuffer.wrap(data));
+        return new Content(data, index.modificationDate(entry));
+    }
+
+    public synchronized boolean setLastModified(String path, long modificationDate) throws IOException {
+        int entry = index.find(path);
+        if (!live(entry)) return false;
+
+        index.setModificationDate(entry, modificationDate);
+        logPut(path, entry);
+        return true;
+    }
+
+    // Both paths share the packed content afterwards, compaction writes it out once per path
+    public synchronized boolean copy(String from, String to) throws IOException {
+        int source = index.find(from);
+        if (!live(source)) return false;
+
+        int target = entryFor(to);
+        index.setHash(target, index.hashHigh(source), index.hashLow(source));
+        place(target, segments[source], offsets[source], index.fileSize(source), index.modificationDate(source));
+        logPut(to, target);
+        return true;
+    }
+
+    public synchronized boolean rename(String from, String to) throws IOException {
+        return copy(from, to) && delete(from);
+    }
+
+    public synchronized boolean delete(String path) throws IOException {
+        int entry = index.find(path);
+        if (!live(entry)) return false;
+
+        segments[entry] = NO_SEGMENT;
+        pendingLog.writeByte(DELETE);
+        pendingLog.writeUTF(path);
+        return true;
+    }
+
+    // Adds packed files, with their directories and hashes, to a manifest of the loose files
+    public synchronized void addTo(Manifest manifest) {
+        manifest.enableHashes();
+        int[] mapped = new int[index.size()];
+        Arrays.fill(mapped, Integer.MIN_VALUE);
+
+        for (int entry = 0; entry < index.size(); entry++) {
+            if (live(entry)) resolve(manifest, entry, mapped);
+        }
+    }
+
+    // Segments are opened again on demand, the index stays usable
+    public synchronized void close() throws IOException {
+        commit();
+        for (FileChannel channel : segmentChannels.values()) channel.close();
+        segmentChannels.clear();
+        indexLog.close();
+    }
+
+    // Live content is moved out of the old segments a batch at a time, so put and read wait for one
+    // batch at most. Only rewriting the index at the end holds the store for longer
+    public void compactIfNeeded() throws IOException {
+        int lastOldSegment;
+        synchronized (this) {
+            long liveBytes = 0;
+            for (int entry = 0; entry < index.size(); entry++) {
+                if (live(entry)) liveBytes += index.fileSize(entry);
+            }
+            if (totalBytes < MIN_COMPACT_BYTES || liveBytes * 2 > totalBytes) return;
+
+            System.out.println("Compacting " + directory + ": " + liveBytes / 1024 + " KB live of " + totalBytes / 1024 + " KB");
+
+            // New files, and the live ones moved below, go to segments after the old ones
+            lastOldSegment = segmentFiles.last();
+            currentSegment = lastOldSegment + 1;
+        }
+
+        int next = 0;
+        while (true) {
+            synchronized (this) {
+                long moved = 0;
+                while (next < index.size() && moved < COMPACT_BATCH_BYTES) {
+                    if (live(next) && segments[next] <= lastOldSegment) moved += move(next);
+                    next++;
+                }
+                commit();
+                if (next < index.size()) continue;
+
+                // A copy made meanwhile can point an earlier entry at old content
+                for (int entry = 0; entry < index.size(); entry++) {
+                    if (live(entry) && segments[entry] <= lastOldSegment) move(entry);
+                }
+                commit();
+                rewriteIndex();
+                deleteSegmentsUpTo(lastOldSegment);
+                return;
+            }
+        }
+    }
+
+    private long move(int entry) throws IOException {
+        int length = (int) index.fileSize(entry);
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(segments[entry], offsets[entry], data);
+        data.flip();
+
+        FileChannel segment = segmentFor(length);
+        long offset = segment.size();
+        while (data.hasRemaining()) segment.write(data, offset + (length - data.remaining()));
+        totalBytes += length;
+        dirtySegments.add(currentSegment);
+
+        place(entry, currentSegment, offset, length, index.modificationDate(entry));
+        logPut(index.path(entry), entry);
+        return length;
+    }
+
+    // Replaces the index log, and the index, by one holding only the live entries
+    private void rewriteIndex() throws IOException {
+        Manifest oldIndex = index;
+        int[] oldEntrySegments = segments;
+        long[] oldOffsets = offsets;
+
+        index = new Manifest();
+        index.enableHashes();
+        segments = new int[0];
+        offsets = new long[0];
+
+        Path compactedLog = directory.resolve("index.log.tmp");
+        try (FileChannel channel = FileChannel.open(compactedLog, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            DataOutputStream compacted = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            for (int entry = 0; entry < oldIndex.size(); entry++) {
+                if (oldEntrySegments[entry] == NO_SEGMENT || oldIndex.isDirectory(entry)) continue;
+
+                String path = oldIndex.path(entry);
+                int target = entryFor(path);
+                index.setHash(target, oldIndex.hashHigh(entry), oldIndex.hashLow(entry));
+                place(target, oldEntrySegments[entry], oldOffsets[entry], oldIndex.fileSize(entry), oldIndex.modificationDate(entry));
+                writePut(compacted, path, target);
+            }
+            compacted.flush();
+            channel.force(false);
+        } catch (IOException e) {
+            // The old log still holds every record, the moved content included
+            index = oldIndex;
+            segments = oldEntrySegments;
+            offsets = oldOffsets;
+            Files.deleteIfExists(compactedLog);
+            throw e;
+        }
+
+        indexLog.close();
+        try {
+            Files.move(compactedLog, directory.resolve("index.log"), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            indexLog = openIndexLog();
+        }
+    }
+
+    private void deleteSegmentsUpTo(int lastSegment) throws IOException {
+        while (!segmentFiles.isEmpty() && segmentFiles.first() <= lastSegment) {
+            int segment = segmentFiles.pollFirst();
+            FileChannel channel = segmentChannels.remove(segment);
+            if (channel != null) channel.close();
+
+            Path file = segmentPath(segment);
+            if (Files.exists(file)) totalBytes -= Files.size(file);
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void load() throws IOException {
+        index = new Manifest();
+        index.enableHashes();
+        segments = new int[0];
+        offsets = new long[0];
+
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith("segment-") || !name.endsWith(".dat")) continue;
+
+                int segment = Integer.parseInt(name.substring("segment-".length(), name.length() - ".dat".length()));
+                totalBytes += Files.size(file);
+                segmentFiles.add(segment);
+                currentSegment = Math.max(currentSegment, segment);
+            }
+        }
+
+        Path logFile = directory.resolve("index.log");
+        if (Files.exists(logFile)) replay(logFile);
+        indexLog = openIndexLog();
+    }
+
+    // Replays the index log and cuts off a record left incomplete by a crash, so new records
+    // are appended right after the last complete one
+    private void replay(Path logFile) throws IOException {
+        long complete = 0;
+        try (CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Files.newInputStream(logFile)));
+             DataInputStream in = new DataInputStream(counter)) {
+            while (true) {
+                int type = in.read();
+                if (type == -1) break;
+
+                String path = in.readUTF();
+                if (type == DELETE) {
+                    int entry = index.find(path);
+                    if (live(entry)) segments[entry] = NO_SEGMENT;
+                } else if (type == PUT) {
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+                    long length = in.readLong();
+                    long modificationDate = in.readLong();
+                    long hashHigh = in.readLong();
+                    long hashLow = in.readLong();
+
+                    int entry = entryFor(path);
+                    index.setHash(entry, hashHigh, hashLow);
+                    place(entry, segment, offset, length, modificationDate);
+                } else {
+                    System.err.println("Index of " + directory + " has an unknown record at byte " + complete + ".");
+                    break;
+                }
+                complete = counter.getCount();
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            System.err.println("Index of " + directory + " ends with an incomplete record.");
+        }
+
+        if (complete < Files.size(logFile)) {
+            try (FileChannel log = FileChannel.open(logFile, StandardOpenOption.WRITE)) {
+                log.truncate(complete);
+                log.force(false);
+            }
+        }
+    }
+
+    private void logPut(String path, int entry) throws IOException {
+        writePut(pendingLog, path, entry);
+    }
+
+    private void writePut(DataOutputStream log, String path, int entry) throws IOException {
+        log.writeByte(PUT);
+        log.writeUTF(path);
+        log.writeInt(segments[entry]);
+        log.writeLong(offsets[entry]);
+        log.writeLong(index.fileSize(entry));
+        log.writeLong(index.modificationDate(entry));
+        log.writeLong(index.hashHigh(entry));
+        log.writeLong(index.hashLow(entry));
+    }
+
+    private DataOutputStream openIndexLog() throws IOException {
+        OutputStream out = Files.newOutputStream(directory.resolve("index.log"), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        return new DataOutputStream(new BufferedOutputStream(out));
+    }
+
+    private void place(int entry, int segment, long offset, long length, long modificationDate) {
+        if (entry >= segments.length) {
+            int capacity = Math.max(16, Math.max(entry + 1, segments.length * 2));
+            segments = Arrays.copyOf(segments, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+        }
+        segments[entry] = segment;
+        offsets[entry] = offset;
+        index.setFileSize(entry, length);
+        index.setModificationDate(entry, modificationDate);
+    }
+
+    // Finds the file entry of a path, adding it and its missing directories to the index
+    private int entryFor(String path) {
+        int entry = Manifest.ROOT;
+        String[] names = path.split("/");
+
+        for (int i = 0; i < names.length; i++) {
+            int child = index.find(entry, names[i]);
+            if (child == Manifest.NOT_FOUND) {
+                child = i == names.length - 1
+                        ? index.addFile(entry, names[i], 0, 0)
+                        : index.addDirectory(entry, names[i], 0);
+                place(child, NO_SEGMENT, 0, i == names.length - 1 ? 0 : -1, 0);
+            }
+            entry = child;
+        }
+        return entry;
+    }
+
+    private int resolve(Manifest manifest, int entry, int[] mapped) {
+        if (mapped[entry] != Integer.MIN_VALUE) return mapped[entry];
+
+        int parent = index.parent(entry) == Manifest.ROOT ? Manifest.ROOT : resolve(manifest, index.parent(entry), mapped);
+        int found = manifest.find(parent, index.name(entry));
+
+        if (found == Manifest.NOT_FOUND) {
+            if (index.isDirectory(entry)) {
+                found = manifest.addDirectory(parent, index.name(entry), index.modificationDate(entry));
+            } else {
+                found = manifest.addFile(parent, index.name(entry), index.modificationDate(entry), index.fileSize(entry));
+                manifest.setHash(found, index.hashHigh(entry), index.hashLow(entry));
+            }
+        }
+        return mapped[entry] = found;
+    }
+
+    private boolean live(int entry) {
+        return entry != Manifest.NOT_FOUND && entry < segments.length && segments[entry] != NO_SEGMENT
+                && !index.isDirectory(entry);
+    }
+
+    private void readFully(int segment, long offset, ByteBuffer buffer) throws IOException {
+        FileChannel channel = segmentChannel(segment);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                throw new EOFException("Segment " + segment + " ends inside a packed file");
+            }
+        }
+    }
+
+    private FileChannel segmentFor(int length) throws IOException {
+        FileChannel segment = segmentChannel(Math.max(currentSegment, 1));
+        currentSegment = Math.max(currentSegment, 1);
+
+        if (segment.size() > 0 && segment.size() + length > SEGMENT_SIZE) {
+            currentSegment++;
+            segment = segmentChannel(currentSegment);
+        }
+        return segment;
+    }
+
+    private FileChannel segmentChannel(int segment) throws IOException {
+        FileChannel channel = segmentChannels.get(segment);
+        if (channel == null) {
+            channel = FileChannel.open(segmentPath(segment), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segmentChannels.put(segment, channel);
+            segmentFiles.add(segment);
+        }
+        return channel;
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("segment-%06d.dat", segment));
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PackedStoreTest {
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    @TempDir
+    Path directory;
+
+    // A reopened store has no segment opened yet, compaction still has to replace all of them
+    @Test
+    void compactionAfterReopenDeletesEverySegment() throws IOException {
+        PackedStore store = PackedStore.open(directory);
+        for (int i = 0; i < 80; i++) store.put("file-" + i, content(i), 1000 + i);
+        for (int i = 0; i < 80; i++) {
+            if (i % 5 != 0) store.delete("file-" + i);
+        }
+        store.close();
+        assertTrue(segmentCount() > 1);
+
+        store = PackedStore.open(directory);
+        store.compactIfNeeded();
+        assertEquals(16L * FILE_SIZE, segmentBytes());
+
+        // Nothing is left to reclaim, so a second compaction must not copy anything again
+        store.compactIfNeeded();
+        assertEquals(16L * FILE_SIZE, segmentBytes());
+        store.close();
+
+        store = PackedStore.open(directory);
+        for (int i = 0; i < 80; i++) {
+            PackedStore.Content read = store.read("file-" + i);
+            if (i % 5 != 0) {
+                assertNull(read);
+                continue;
+            }
+            assertArrayEquals(content(i).array(), read.data());
+            assertEquals(1000 + i, read.modificationDate());
+        }
+        store.put("after-compaction", content(80), 2000);
+        assertArrayEquals(content(80).array(), store.read("after-compaction").data());
+        store.close();
+    }
+
+    // Compaction moves content in batches, files written and renamed meanwhile must all survive it
+    @Test
+    void writesDuringCompactionAreKept() throws Exception {
+        PackedStore store = PackedStore.open(directory);
+        for (int i = 0; i < 80; i++) store.put("file-" + i, content(i), 1000 + i);
+        for (int i = 0; i < 80; i++) {
+            if (i % 5 != 0) store.delete("file-" + i);
+        }
+
+        PackedStore compacting = store;
+        Thread compaction = new Thread(() -> {
+            try {
+                compacting.compactIfNeeded();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        compaction.start();
+        for (int i = 0; i < 500; i++) {
+            store.put("small/" + i, ByteBuffer.wrap(("small " + i).getBytes()), 3000 + i);
+            if (i % 50 == 0) store.rename("file-" + (i / 50 * 5), "moved-" + i);
+        }
+        compaction.join();
+        store.close();
+
+        store = PackedStore.open(directory);
+        for (int i = 0; i < 500; i++) {
+            assertArrayEquals(("small " + i).getBytes(), store.read("small/" + i).data());
+        }
+        for (int i = 0; i < 500; i += 50) {
+            assertNull(store.read("file-" + (i / 50 * 5)));
+            assertArrayEquals(content(i / 50 * 5).array(), store.read("moved-" + i).data());
+        }
+        assertTrue(segmentBytes() < 20L * FILE_SIZE);
+        store.close();
+    }
+
+    private ByteBuffer content(int seed) {
+        byte[] data = new byte[FILE_SIZE];
+        Arrays.fill(data, (byte) seed);
+        return ByteBuffer.wrap(data);
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().startsWith("segment-")).count();
+        }
+    }
+
+    private long segmentBytes() throws IOException {
+        long bytes = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (file.getFileName().toString().startsWith("segment-")) bytes += Files.size(file);
+            }
+        }
+        return bytes;
+    }
+}